@@ -0,0 +1,141 @@
+// Admission control for Reserve requests
+
+/**
+ * Decides whether a Reserve request is admitted before it reaches the seat pool or the waitlist, so a surge
+ * of requests is turned away in O(1) without growing or even touching the waitlist heap. Three policies,
+ * each disabled by default:
+ *
+ *   -Dgtm.admission.rateLimit=N        at most N Reserve requests per user per rate window
+ *   -Dgtm.admission.rateWindow=W       the rate window, in commands of the logical clock (default 1000)
+ *   -Dgtm.admission.maxDepth=D         a section's waitlist never holds more than D users
+ *   -Dgtm.admission.watermark=M        once a section's waitlist holds M users,
+ *   -Dgtm.admission.minPriority=P      only requests with priority P or higher may join it
+ *
+ * Rate windows are aligned to the logical clock, so every replay of the same commands makes the same decisions.
+ * Request counts are kept in an IntLongHashMap that is replaced by a new, small one when a new window starts,
+ * so it only ever holds the users seen in the current window and a surge does not leave a large table behind.
+ */
+public class AdmissionPolicy {
+    // The outcome of an admission check
+    public enum Decision {
+        ADMITTED,
+        RATE_LIMITED,       // The user sent too many requests in the current window
+        WAITLIST_FULL,      // The section's waitlist is at its maximum depth
+        PRIORITY_TOO_LOW    // The section's waitlist is above the watermark and the priority below the minimum
+    }
+
+    private final int rateLimit;
+    private final long rateWindow;
+    private final int maxDepth;
+    private final int watermark;
+    private final int minPriority;
+
+    // Requests per user in the current rate window
+    private IntLongHashMap requestCounts;
+    private long currentWindow;
+
+    /**
+     * Creates a policy.
+     * @param rateLimit the maximum number of requests per user per window, or 0 for no limit
+     * @param rateWindow the length of a rate window in commands
+     * @param maxDepth the maximum waitlist depth, or 0 for no limit
+     * @param watermark the waitlist depth from which minPriority applies, or 0 to never apply it
+     * @param minPriority the lowest priority that may join a waitlist above the watermark
+     */
+    public AdmissionPolicy(int rateLimit, long rateWindow, int maxDepth, int watermark, int minPriority) {
+        this.rateLimit      = rateLimit;
+        this.rateWindow     = Math.max(rateWindow, 1);
+        this.maxDepth       = maxDepth;
+        this.watermark      = watermark;
+        this.minPriority    = minPriority;
+        this.requestCounts  = new IntLongHashMap();
+    }
+
+    /**
+     * Creates the policy configured with the gtm.admission system properties.
+     * @return the configured policy, which admits everything if no property is set
+     */
+    public static AdmissionPolicy fromSystemProperties() {
+        return new AdmissionPolicy(
+                Integer.getInteger("gtm.admission.rateLimit", 0),
+                Long.getLong("gtm.admission.rateWindow", 1000),
+                Integer.getInteger("gtm.admission.maxDepth", 0),
+                Integer.getInteger("gtm.admission.watermark", 0),
+                Integer.getInteger("gtm.admission.minPriority", 0));
+    }
+
+    /**
+     * Counts a Reserve request of the given user and checks it against the rate limit.
+     * @param userID the user making the request
+     * @param clock the engine's logical clock
+     * @return ADMITTED or RATE_LIMITED
+     */
+    public Decision admitRequest(int userID, long clock) {
+        if (rateLimit <= 0) {
+            return Decision.ADMITTED;
+        }
+
+        // Counts of earlier windows no longer matter. Clearing would cost O(capacity), which after a surge
+        // is the peak number of users, so the table is dropped instead
+        long window = clock / rateWindow;
+        if (window != currentWindow) {
+            requestCounts = new IntLongHashMap();
+            currentWindow = window;
+        }
+
+        long count = requestCounts.get(userID, 0) + 1;
+        requestCounts.put(userID, count);
+        return count > rateLimit ? Decision.RATE_LIMITED : Decision.ADMITTED;
+    }
+
+    /**
+     * Takes back the count of the user's last request, which failed without changing anything.
+     * Must be called in the same command as admitRequest.
+     * @param userID the user whose request failed
+     */
+    public void refundRequest(int userID) {
+        if (rateLimit <= 0) {
+            return;
+        }
+        long count = requestCounts.get(userID, 0) - 1;
+        if (count > 0) {
+            requestCounts.put(userID, count);
+        } else {
+            requestCounts.remove(userID);
+        }
+    }
+
+    /**
+     * Checks whether a request may join a waitlist of the given depth.
+     * @param priority the priority of the request
+     * @param depth the current size of the waitlist
+     * @return ADMITTED, WAITLIST_FULL or PRIORITY_TOO_LOW
+     */
+    public Decision admitToWaitlist(int priority, int depth) {
+        if (maxDepth > 0 && depth >= maxDepth) {
+            return Decision.WAITLIST_FULL;
+        }
+        if (watermark > 0 && depth >= watermark && priority < minPriority) {
+            return Decision.PRIORITY_TOO_LOW;
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Describes the configuration of this policy with the system properties that set it
+     * @return the settings, e.g. "gtm.admission.rateLimit=0 gtm.admission.rateWindow=1000 ..."
+     */
+    public String settings() {
+        return "gtm.admission.rateLimit=" + rateLimit + " gtm.admission.rateWindow=" + rateWindow
+                + " gtm.admission.maxDepth=" + maxDepth + " gtm.admission.watermark=" + watermark
+                + " gtm.admission.minPriority=" + minPriority;
+    }
+
+    /**
+     * Returns the lowest priority that may join a waitlist above the watermark
+     * @return the minimum priority
+     */
+    public int minPriority() {
+        return minPriority;
+    }
+}
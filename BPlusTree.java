@@ -0,0 +1,502 @@
+// B+ tree implementation of the reservation store
+
+import java.util.Arrays;
+
+/**
+ * An ordered userID -> seatID map stored as a B+ tree with wide nodes.
+ * Keys and values live in primitive int arrays, so a lookup touches one small array per level
+ * (about 4 levels for 10M reservations) instead of one scattered object per level of a binary tree.
+ * All reservations are in the leaves, which are linked left to right for range scans.
+ */
+public class BPlusTree implements ReservationStore {
+    private static final int LEAF_CAPACITY  = 64;
+    private static final int INNER_CAPACITY = 64;
+    private static final int LEAF_MIN       = LEAF_CAPACITY / 2;
+    private static final int INNER_MIN      = INNER_CAPACITY / 2;
+
+    // Leaf node: sorted user IDs and their seats. The arrays have one spare slot so a full node can take
+    // the new entry before it is split.
+    static final class Leaf {
+        final int[] keys    = new int[LEAF_CAPACITY + 1];
+        final int[] seats   = new int[LEAF_CAPACITY + 1];
+        int count;
+        Leaf next;
+    }
+
+    // Inner node: keys[i] is the smallest user ID below children[i + 1]
+    static final class Inner {
+        final int[] keys            = new int[INNER_CAPACITY + 1];
+        final Object[] children     = new Object[INNER_CAPACITY + 2];
+        int count;
+    }
+
+    // A reservation's place in its leaf, as returned by locate
+    static final class Position {
+        final Leaf leaf;
+        final int index;
+
+        Position(Leaf leaf, int index) {
+            this.leaf   = leaf;
+            this.index  = index;
+        }
+    }
+
+    private Object root = new Leaf();
+    private int height;     // Number of inner levels above the leaves
+    private int size;
+    // Node splits, borrows and merges performed so far
+    private long rebalanceSteps;
+
+    // Result of a split during insert: the new right node and the key that separates it from the left node
+    private Object splitNode;
+    private int splitKey;
+
+    /**
+     * Returns the index of the first key that is not less than the given key.
+     * @param keys the sorted keys
+     * @param count the number of keys in use
+     * @param key the key to search for
+     * @return the insertion point of the key
+     */
+    private static int lowerBound(int[] keys, int count, int key) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index of the first key greater than the given key, which is also the index of the child to descend into.
+     * @param keys the sorted keys
+     * @param count the number of keys in use
+     * @param key the key to search for
+     * @return the index of the first greater key
+     */
+    private static int upperBound(int[] keys, int count, int key) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Descends from the root to the leaf that holds, or would hold, the given user ID.
+     * @param userID the user ID to search for
+     * @return the leaf for the user ID
+     */
+    private Leaf findLeaf(int userID) {
+        Object node = root;
+        for (int level = 0; level < height; level++) {
+            Inner inner = (Inner) node;
+            node        = inner.children[upperBound(inner.keys, inner.count, userID)];
+        }
+        return (Leaf) node;
+    }
+
+    @Override
+    public int findSeat(int userID) {
+        Leaf leaf   = findLeaf(userID);
+        int index   = lowerBound(leaf.keys, leaf.count, userID);
+        return index < leaf.count && leaf.keys[index] == userID ? leaf.seats[index] : NO_SEAT;
+    }
+
+    @Override
+    public void insert(int userID, int seatID) {
+        splitNode = null;
+        insert(root, height, userID, seatID);
+
+        // The root was split, so the tree grows by one level
+        if (splitNode != null) {
+            Inner newRoot           = new Inner();
+            newRoot.keys[0]         = splitKey;
+            newRoot.children[0]     = root;
+            newRoot.children[1]     = splitNode;
+            newRoot.count           = 1;
+            root                    = newRoot;
+            height++;
+            splitNode               = null;
+        }
+    }
+
+    /**
+     * Inserts into the subtree rooted at the given node. If the node overflows it is split and the new
+     * right node and its separator key are left in splitNode and splitKey.
+     * @param node the root of the subtree
+     * @param level the number of inner levels below and including this node
+     * @param userID the ID of the user
+     * @param seatID the ID of the seat
+     */
+    private void insert(Object node, int level, int userID, int seatID) {
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            int index = lowerBound(leaf.keys, leaf.count, userID);
+            if (index < leaf.count && leaf.keys[index] == userID) {
+                leaf.seats[index] = seatID;
+                return;
+            }
+
+            // Shift the larger keys right and place the new entry
+            System.arraycopy(leaf.keys, index, leaf.keys, index + 1, leaf.count - index);
+            System.arraycopy(leaf.seats, index, leaf.seats, index + 1, leaf.count - index);
+            leaf.keys[index]    = userID;
+            leaf.seats[index]   = seatID;
+            leaf.count++;
+            size++;
+
+            if (leaf.count > LEAF_CAPACITY) {
+                splitLeaf(leaf);
+            }
+            return;
+        }
+
+        Inner inner = (Inner) node;
+        int child   = upperBound(inner.keys, inner.count, userID);
+        insert(inner.children[child], level - 1, userID, seatID);
+        if (splitNode == null) {
+            return;
+        }
+
+        // Add the separator and the new child right after the child that was split
+        System.arraycopy(inner.keys, child, inner.keys, child + 1, inner.count - child);
+        System.arraycopy(inner.children, child + 1, inner.children, child + 2, inner.count - child);
+        inner.keys[child]           = splitKey;
+        inner.children[child + 1]   = splitNode;
+        inner.count++;
+        splitNode                   = null;
+
+        if (inner.count > INNER_CAPACITY) {
+            splitInner(inner);
+        }
+    }
+
+    /**
+     * Moves the upper half of an overflowing leaf into a new leaf linked after it.
+     * @param leaf the leaf to split
+     */
+    private void splitLeaf(Leaf leaf) {
+        rebalanceSteps++;
+        Leaf right  = new Leaf();
+        int keep    = leaf.count / 2;
+        right.count = leaf.count - keep;
+        System.arraycopy(leaf.keys, keep, right.keys, 0, right.count);
+        System.arraycopy(leaf.seats, keep, right.seats, 0, right.count);
+        leaf.count  = keep;
+
+        right.next  = leaf.next;
+        leaf.next   = right;
+        splitNode   = right;
+        splitKey    = right.keys[0];
+    }
+
+    /**
+     * Moves the upper half of an overflowing inner node into a new node; the middle key moves up to the parent.
+     * @param inner the inner node to split
+     */
+    private void splitInner(Inner inner) {
+        rebalanceSteps++;
+        Inner right = new Inner();
+        int middle  = inner.count / 2;
+        right.count = inner.count - middle - 1;
+        System.arraycopy(inner.keys, middle + 1, right.keys, 0, right.count);
+        System.arraycopy(inner.children, middle + 1, right.children, 0, right.count + 1);
+        Arrays.fill(inner.children, middle + 1, inner.count + 1, null);
+        inner.count = middle;
+
+        splitNode   = right;
+        splitKey    = inner.keys[middle];
+    }
+
+    @Override
+    public Object locate(int userID) {
+        Leaf leaf   = findLeaf(userID);
+        int index   = lowerBound(leaf.keys, leaf.count, userID);
+        return index < leaf.count && leaf.keys[index] == userID ? new Position(leaf, index) : null;
+    }
+
+    @Override
+    public int seatAt(Object handle) {
+        Position position = (Position) handle;
+        return position.leaf.seats[position.index];
+    }
+
+    @Override
+    public void deleteAt(Object handle) {
+        Position position   = (Position) handle;
+        Leaf leaf           = position.leaf;
+
+        // A leaf with entries to spare, or the root leaf, loses the entry in place. Separators only bound the
+        // keys below them, so they stay valid. Otherwise the leaf needs its parent to rebalance, so descend.
+        if (height > 0 && leaf.count <= LEAF_MIN) {
+            delete(leaf.keys[position.index]);
+            return;
+        }
+        System.arraycopy(leaf.keys, position.index + 1, leaf.keys, position.index, leaf.count - position.index - 1);
+        System.arraycopy(leaf.seats, position.index + 1, leaf.seats, position.index, leaf.count - position.index - 1);
+        leaf.count--;
+        size--;
+    }
+
+    @Override
+    public void delete(int userID) {
+        if (!delete(root, height, userID)) {
+            return;
+        }
+        size--;
+
+        // The root lost its last separator, so the tree shrinks by one level
+        if (height > 0 && ((Inner) root).count == 0) {
+            root = ((Inner) root).children[0];
+            height--;
+        }
+    }
+
+    /**
+     * Deletes from the subtree rooted at the given node, refilling any child that falls below half full
+     * by borrowing from or merging with a sibling.
+     * @param node the root of the subtree
+     * @param level the number of inner levels below and including this node
+     * @param userID the ID of the user to delete
+     * @return true if the user was found and deleted, otherwise false
+     */
+    private boolean delete(Object node, int level, int userID) {
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            int index = lowerBound(leaf.keys, leaf.count, userID);
+            if (index == leaf.count || leaf.keys[index] != userID) {
+                return false;
+            }
+            System.arraycopy(leaf.keys, index + 1, leaf.keys, index, leaf.count - index - 1);
+            System.arraycopy(leaf.seats, index + 1, leaf.seats, index, leaf.count - index - 1);
+            leaf.count--;
+            return true;
+        }
+
+        Inner inner = (Inner) node;
+        int child   = upperBound(inner.keys, inner.count, userID);
+        if (!delete(inner.children[child], level - 1, userID)) {
+            return false;
+        }
+
+        if (level == 1) {
+            if (((Leaf) inner.children[child]).count < LEAF_MIN) {
+                rebalanceLeaf(inner, child);
+            }
+        } else if (((Inner) inner.children[child]).count < INNER_MIN) {
+            rebalanceInner(inner, child);
+        }
+        return true;
+    }
+
+    /**
+     * Refills an underfull leaf from a sibling with entries to spare, or merges it with a sibling.
+     * @param parent the parent of the leaf
+     * @param child the index of the leaf in its parent
+     */
+    private void rebalanceLeaf(Inner parent, int child) {
+        rebalanceSteps++;
+        Leaf leaf   = (Leaf) parent.children[child];
+        Leaf left   = child > 0 ? (Leaf) parent.children[child - 1] : null;
+        Leaf right  = child < parent.count ? (Leaf) parent.children[child + 1] : null;
+
+        if (left != null && left.count > LEAF_MIN) {
+            // Move the largest entry of the left sibling to the front of this leaf
+            System.arraycopy(leaf.keys, 0, leaf.keys, 1, leaf.count);
+            System.arraycopy(leaf.seats, 0, leaf.seats, 1, leaf.count);
+            left.count--;
+            leaf.keys[0]            = left.keys[left.count];
+            leaf.seats[0]           = left.seats[left.count];
+            leaf.count++;
+            parent.keys[child - 1]  = leaf.keys[0];
+        } else if (right != null && right.count > LEAF_MIN) {
+            // Move the smallest entry of the right sibling to the end of this leaf
+            leaf.keys[leaf.count]   = right.keys[0];
+            leaf.seats[leaf.count]  = right.seats[0];
+            leaf.count++;
+            right.count--;
+            System.arraycopy(right.keys, 1, right.keys, 0, right.count);
+            System.arraycopy(right.seats, 1, right.seats, 0, right.count);
+            parent.keys[child]      = right.keys[0];
+        } else if (left != null) {
+            mergeLeaves(parent, child - 1, left, leaf);
+        } else if (right != null) {
+            mergeLeaves(parent, child, leaf, right);
+        }
+    }
+
+    /**
+     * Appends the right leaf to the left leaf and removes the right leaf from the parent.
+     * @param parent the parent of both leaves
+     * @param leftIndex the index of the left leaf in the parent
+     * @param left the left leaf
+     * @param right the right leaf
+     */
+    private void mergeLeaves(Inner parent, int leftIndex, Leaf left, Leaf right) {
+        System.arraycopy(right.keys, 0, left.keys, left.count, right.count);
+        System.arraycopy(right.seats, 0, left.seats, left.count, right.count);
+        left.count += right.count;
+        left.next   = right.next;
+        removeFromInner(parent, leftIndex);
+    }
+
+    /**
+     * Refills an underfull inner node by rotating a key through the parent, or merges it with a sibling.
+     * @param parent the parent of the inner node
+     * @param child the index of the inner node in its parent
+     */
+    private void rebalanceInner(Inner parent, int child) {
+        rebalanceSteps++;
+        Inner inner = (Inner) parent.children[child];
+        Inner left  = child > 0 ? (Inner) parent.children[child - 1] : null;
+        Inner right = child < parent.count ? (Inner) parent.children[child + 1] : null;
+
+        if (left != null && left.count > INNER_MIN) {
+            // The separator comes down in front of this node and the left sibling's last key goes up
+            System.arraycopy(inner.keys, 0, inner.keys, 1, inner.count);
+            System.arraycopy(inner.children, 0, inner.children, 1, inner.count + 1);
+            inner.keys[0]               = parent.keys[child - 1];
+            inner.children[0]           = left.children[left.count];
+            inner.count++;
+            parent.keys[child - 1]      = left.keys[left.count - 1];
+            left.children[left.count]   = null;
+            left.count--;
+        } else if (right != null && right.count > INNER_MIN) {
+            // The separator comes down at the end of this node and the right sibling's first key goes up
+            inner.keys[inner.count]             = parent.keys[child];
+            inner.children[inner.count + 1]     = right.children[0];
+            inner.count++;
+            parent.keys[child]                  = right.keys[0];
+            System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+            System.arraycopy(right.children, 1, right.children, 0, right.count);
+            right.children[right.count]         = null;
+            right.count--;
+        } else if (left != null) {
+            mergeInners(parent, child - 1, left, inner);
+        } else if (right != null) {
+            mergeInners(parent, child, inner, right);
+        }
+    }
+
+    /**
+     * Joins the right inner node onto the left one around their separator and removes the right node from the parent.
+     * @param parent the parent of both nodes
+     * @param leftIndex the index of the left node in the parent
+     * @param left the left node
+     * @param right the right node
+     */
+    private void mergeInners(Inner parent, int leftIndex, Inner left, Inner right) {
+        left.keys[left.count] = parent.keys[leftIndex];
+        System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+        System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+        left.count += right.count + 1;
+        removeFromInner(parent, leftIndex);
+    }
+
+    /**
+     * Removes keys[index] and children[index + 1] from an inner node after its two children were merged.
+     * @param inner the inner node
+     * @param index the index of the separator to remove
+     */
+    private void removeFromInner(Inner inner, int index) {
+        System.arraycopy(inner.keys, index + 1, inner.keys, index, inner.count - index - 1);
+        System.arraycopy(inner.children, index + 2, inner.children, index + 1, inner.count - index - 1);
+        inner.children[inner.count] = null;
+        inner.count--;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long rebalanceSteps() {
+        return rebalanceSteps;
+    }
+
+    @Override
+    public void checkInvariants() {
+        Leaf[] previous = new Leaf[1];
+        int count       = checkNode(root, height, Integer.MIN_VALUE, Integer.MAX_VALUE, true, previous);
+        if (previous[0].next != null) {
+            throw new IllegalStateException("Last leaf links to another leaf");
+        }
+        if (count != size) {
+            throw new IllegalStateException("Tree holds " + count + " reservations, size is " + size);
+        }
+    }
+
+    /**
+     * Verifies the given subtree: sorted keys within the separator bounds, minimum fill for non-root nodes,
+     * and that the leaves are linked in key order.
+     * @param node the root of the subtree
+     * @param level the number of inner levels below and including this node
+     * @param low the smallest user ID allowed in the subtree
+     * @param high the largest user ID allowed in the subtree
+     * @param isRoot whether the node is the root, which may be less than half full
+     * @param previous the last leaf visited so far, used to check the leaf links
+     * @return the number of reservations in the subtree
+     */
+    private int checkNode(Object node, int level, int low, int high, boolean isRoot, Leaf[] previous) {
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            if (!isRoot && leaf.count < LEAF_MIN) {
+                throw new IllegalStateException("Leaf holds " + leaf.count + " reservations, minimum is " + LEAF_MIN);
+            }
+            for (int i = 0; i < leaf.count; i++) {
+                if (leaf.keys[i] < low || leaf.keys[i] > high || (i > 0 && leaf.keys[i - 1] >= leaf.keys[i])) {
+                    throw new IllegalStateException("User " + leaf.keys[i] + " is out of order");
+                }
+            }
+            if (previous[0] != null && previous[0].next != leaf) {
+                throw new IllegalStateException("Leaves are not linked in order");
+            }
+            previous[0] = leaf;
+            return leaf.count;
+        }
+
+        Inner inner = (Inner) node;
+        if (inner.count < (isRoot ? 1 : INNER_MIN)) {
+            throw new IllegalStateException("Inner node holds " + inner.count + " keys");
+        }
+        int count = 0;
+        for (int i = 0; i <= inner.count; i++) {
+            // Child i holds the user IDs in [keys[i - 1], keys[i])
+            int childLow    = i == 0 ? low : inner.keys[i - 1];
+            int childHigh   = i == inner.count ? high : inner.keys[i] - 1;
+            if (childLow > childHigh + 1L) {
+                throw new IllegalStateException("Separator " + inner.keys[i - 1] + " is out of order");
+            }
+            count += checkNode(inner.children[i], level - 1, childLow, childHigh, false, previous);
+        }
+        return count;
+    }
+
+    @Override
+    public void forEachInRange(int fromUserID, int toUserID, Visitor visitor) {
+        // Find the first entry in range, then walk the linked leaves
+        Leaf leaf   = findLeaf(fromUserID);
+        int index   = lowerBound(leaf.keys, leaf.count, fromUserID);
+        while (leaf != null) {
+            for (; index < leaf.count; index++) {
+                if (leaf.keys[index] > toUserID) {
+                    return;
+                }
+                visitor.visit(leaf.keys[index], leaf.seats[index]);
+            }
+            leaf    = leaf.next;
+            index   = 0;
+        }
+    }
+}
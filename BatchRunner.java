@@ -0,0 +1,100 @@
+// Runs many input traces concurrently in one JVM
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes a set of input files on a pool of worker threads, each file on its own GatorTicketMaster instance.
+ * Every input writes its own _output_file.txt exactly as a separate run of the program would, but JVM start-up
+ * and JIT warm-up are paid once for the whole set.
+ */
+public class BatchRunner {
+    private static final String OUTPUT_SUFFIX = "_output_file.txt";
+
+    /**
+     * Expands the given arguments into input files.
+     * A directory contributes all of its .txt files, a pattern such as traces/*.txt is matched as a glob
+     * against the files of its directory, and anything else is taken as a file name. Output files are skipped.
+     * @param arguments directories, globs or file names
+     * @return the input files in a stable order
+     * @throws IOException if a directory cannot be listed
+     */
+    static List<Path> expand(String[] arguments) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        for (String argument : arguments) {
+            Path path = Paths.get(argument);
+            Path directory;
+            String glob;
+            if (Files.isDirectory(path)) {
+                directory   = path;
+                glob        = "*.txt";
+            } else if (argument.contains("*") || argument.contains("?") || argument.contains("[") || argument.contains("{")) {
+                directory   = path.getParent() == null ? Paths.get(".") : path.getParent();
+                glob        = path.getFileName().toString();
+            } else {
+                inputs.add(path);
+                continue;
+            }
+
+            List<Path> matches = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+                for (Path match : stream) {
+                    if (Files.isRegularFile(match) && !match.getFileName().toString().endsWith(OUTPUT_SUFFIX)) {
+                        matches.add(match);
+                    }
+                }
+            }
+            matches.sort(null);
+            inputs.addAll(matches);
+        }
+        return inputs;
+    }
+
+    /**
+     * Runs all input files named by the arguments and reports failures and the total time.
+     * The number of workers defaults to the number of processors and can be set with -Dgtm.batch.threads.
+     * @param arguments directories, globs or file names
+     * @throws IOException if a directory cannot be listed
+     */
+    public static void run(String[] arguments) throws IOException {
+        List<Path> inputs       = expand(arguments);
+        int threads             = Integer.getInteger("gtm.batch.threads", Runtime.getRuntime().availableProcessors());
+        ExecutorService pool    = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, inputs.size())));
+
+        long start = System.nanoTime();
+        List<Future<?>> results = new ArrayList<>();
+        for (Path input : inputs) {
+            results.add(pool.submit(() -> {
+                GatorTicketMaster.processFile(input.toString());
+                return null;
+            }));
+        }
+
+        // Wait for every trace and report the ones that failed
+        int failed = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println("Error processing the file " + inputs.get(i) + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdown();
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Processed " + (inputs.size() - failed) + " of " + inputs.size() + " input files in " + elapsed + " ms");
+    }
+}
@@ -0,0 +1,109 @@
+// Append-only command log written by the primary server
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The primary's log of every command it applied, one command line per line, in the order it applied them.
+ * A standby replays the journal through the same deterministic operations to hold identical state.
+ * Those operations also depend on the engine's settings, such as the aging rate and the admission policy, so
+ * the first line of the journal records them and a replica refuses a journal written with other settings.
+ * Lines are buffered and written once per sequencer batch, so journaling costs one write per batch
+ * rather than one per command. While a primary runs it holds an exclusive lock on the journal's lock
+ * file; the operating system releases the lock when the process dies, which is how a standby notices.
+ */
+public class CommandJournal implements Closeable {
+    private static final String HEADER = "# GatorTicketMaster journal 1 ";
+
+    private final FileLock lock;
+    private final FileOutputStream output;
+    private final Writer writer;
+
+    /**
+     * Opens the journal for appending, starting a new journal with the header line. The caller must already
+     * hold the primary lock and, for an existing journal, have checked its header.
+     * @param journalFile the journal to append to
+     * @param lock the primary lock, released when the journal is closed
+     * @param settings the settings of the engine whose commands are journaled, as returned by GatorTicketMaster.settings
+     * @throws IOException if the journal cannot be opened
+     */
+    public CommandJournal(File journalFile, FileLock lock, String settings) throws IOException {
+        this.lock   = lock;
+        this.output = new FileOutputStream(journalFile, true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(output), 1 << 16);
+        if (output.getChannel().size() == 0) {
+            append(HEADER + settings);
+            flush();
+        }
+    }
+
+    /**
+     * Checks that a journal's header line records the given settings.
+     * @param journalFile the journal, for the error message
+     * @param header the first line of the journal
+     * @param settings the settings of the engine that is to replay the journal
+     * @throws IOException if the line is not a journal header or records other settings
+     */
+    public static void checkHeader(File journalFile, String header, String settings) throws IOException {
+        if (header == null || !header.startsWith(HEADER)) {
+            throw new IOException(journalFile + " is not a version 1 command journal");
+        }
+        String recorded = header.substring(HEADER.length());
+        if (!recorded.equals(settings)) {
+            throw new IOException(journalFile + " was written with " + recorded + " but this process has " + settings
+                    + "; start it with the primary's -D options");
+        }
+    }
+
+    /**
+     * Tries to become the primary for the given journal.
+     * @param journalFile the journal
+     * @return the primary lock, or null if another process is the primary
+     * @throws IOException if the lock file cannot be opened
+     */
+    public static FileLock tryLockPrimary(File journalFile) throws IOException {
+        FileChannel channel = FileChannel.open(new File(journalFile.getPath() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+        }
+        return lock;
+    }
+
+    /**
+     * Adds a command to the current batch
+     * @param line the command line as received
+     * @throws IOException if the buffer could not be written out
+     */
+    public void append(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    /**
+     * Writes the current batch to the journal file, where a standby can read it.
+     * @throws IOException if the journal cannot be written
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Writes the current batch and returns the length of the journal
+     * @return the offset just past the last command appended
+     * @throws IOException if the journal cannot be written
+     */
+    public long flushedLength() throws IOException {
+        writer.flush();
+        return output.getChannel().size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        lock.channel().close();
+    }
+}
@@ -0,0 +1,108 @@
+// Loopback TCP stream of the engine's change feed
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Streams a ReservationFeed to every client that connects, one event per line as ReservationEvent prints it.
+ * Each connection is a feed subscriber that asks for the next batch only once the previous one has been written,
+ * so a slow client loses batches, visible as gaps in the sequence numbers, instead of slowing the engine.
+ * Clients only read; anything they send is ignored.
+ */
+public class FeedServer {
+    private final ReservationFeed feed;
+    private final ServerSocket server;
+
+    /**
+     * Binds the feed port.
+     * @param feed the feed to stream
+     * @param port the loopback port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public FeedServer(ReservationFeed feed, int port) throws IOException {
+        this.feed   = feed;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Accepts subscribers on a daemon thread until the process is stopped.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::accept, "gtm-feed-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("GatorTicketMaster change feed on " + server.getLocalSocketAddress());
+    }
+
+    private void accept() {
+        try (ServerSocket listener = server) {
+            while (true) {
+                Socket socket = listener.accept();
+                feed.subscribe(new Connection(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Error accepting feed subscribers: " + e.getMessage());
+        }
+    }
+
+    // A single client, written to on the feed's delivery thread for this subscriber
+    static class Connection implements Flow.Subscriber<List<ReservationEvent>> {
+        private final Socket socket;
+        private Writer writer;
+        private Flow.Subscription subscription;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                subscription.request(1);
+            } catch (IOException e) {
+                subscription.cancel();
+                close();
+            }
+        }
+
+        @Override
+        public void onNext(List<ReservationEvent> batch) {
+            try {
+                for (ReservationEvent event : batch) {
+                    writer.write(event.toString());
+                    writer.write(System.lineSeparator());
+                }
+                writer.flush();
+                subscription.request(1);
+            } catch (IOException e) {
+                // The client went away
+                subscription.cancel();
+                close();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            close();
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+}
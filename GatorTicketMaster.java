@@ -1,84 +1,501 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import jdk.jfr.FlightRecorder;
 
 class GatorTicketMaster {
-    private RedBlackTree seatReservations;
-    private MinHeap waitlist;
-    private MinHeap availableSeats;
+    private ReservationStore seatReservations;
+    // Sections by name in creation order; the unnamed default section is always present
+    private final Map<String, Section> sections;
+    // The same sections by position, which is how the state file refers to them
+    private final List<Section> sectionOrder;
+    private final Section defaultSection;
+    // The section of every seat, for routing a freed seat back to its section's pool and waitlist
+    private SeatRangeMap<Section> seatSections;
+    // The section whose waitlist holds each waiting user, so a user is found without asking every section;
+    // null with a state file, whose index of waiting users serves instead
+    private final IntObjectHashMap<Section> waitingSections;
+    private final int waitlistMemoryLimit;
     private int totalSeatCount;
-    private static PrintWriter outputStream;
+    private final PrintWriter outputStream;
+    // The channel of the output file behind outputStream, for gathering writes; null when printing to anything else
+    private FileChannel outputChannel;
+    // PrintReservations dumps at least this large are sorted and formatted in parallel
+    private static final int PARALLEL_PRINT_THRESHOLD = Integer.getInteger("gtm.print.parallelThreshold", 100_000);
+
+    // Priority aging: waitlisted users gain agingRate priority points per 1000 commands spent in line.
+    // Zero (the default) disables aging and keeps the plain priority/arrival order.
+    private final long agingRate = Long.getLong("gtm.aging.rate", 0);
+    // Logical clock, advanced once per command, so aging is reproducible for a given input
+    private long clock;
+    // Arrival counter for waitlist ties. Unlike a wall-clock timestamp it is identical on every replay of the
+    // same commands, which a standby replica relies on
+    private long arrivals;
+    // Change feed for downstream systems, created on first use
+    private ReservationFeed feed;
+    // Decides which Reserve requests are turned away during a surge
+    private final AdmissionPolicy admission;
+    // The mapped file holding the engine's state, and the layout of that state in it; both null if none
+    private final MappedStateFile stateFile;
+    private final MappedEngineState mappedState;
+    // The most recent commands that took longer than gtm.slowCommand.thresholdMicros
+    private final SlowCommandRecorder slowCommands;
+    // Set once release has run, so the engine's resources are released only once
+    private boolean released;
 
     public GatorTicketMaster(String outputFile) throws IOException {
-        seatReservations    = new RedBlackTree();
-        waitlist            = new MinHeap();
-        availableSeats      = new MinHeap();
-        outputStream        = new PrintWriter(new FileWriter(outputFile));
+        this(new PrintWriter(new FileWriter(outputFile)));
+    }
+
+    public GatorTicketMaster(PrintWriter writer) {
+        this(writer, ReservationStore.create(System.getProperty("gtm.store", "rbtree")));
+    }
+
+    public GatorTicketMaster(PrintWriter writer, ReservationStore store) {
+        this(writer, store, Integer.getInteger("gtm.waitlist.memoryLimit", 0));
+    }
+
+    /**
+     * Creates an engine with the given reservation store
+     * @param writer the writer that receives the output of every command
+     * @param store the reservation store
+     * @param waitlistMemoryLimit the number of entries each section's waitlist keeps in memory, or 0 to never spill
+     */
+    public GatorTicketMaster(PrintWriter writer, ReservationStore store, int waitlistMemoryLimit) {
+        this(writer, store, waitlistMemoryLimit, null);
+    }
+
+    /**
+     * Creates an engine whose state lives in the given mapped state file, resuming from its last commit without
+     * reading anything back: the reservations, every section's free seats and waitlist and the index of waiting
+     * users are used where they lie in the file. Mapped waitlists do not spill, so gtm.waitlist.memoryLimit is
+     * only reported in the settings, where it has to match the settings of a standby without a state file.
+     * @param writer the writer that receives the output of every command
+     * @param stateFile the mapped state file, which the engine commits after every command and closes on Quit
+     */
+    public GatorTicketMaster(PrintWriter writer, MappedStateFile stateFile) {
+        this(writer, MappedEngineState.open(stateFile));
+    }
+
+    private GatorTicketMaster(PrintWriter writer, MappedEngineState mappedState) {
+        this(writer, mappedState.store(), Integer.getInteger("gtm.waitlist.memoryLimit", 0), mappedState);
+        // A new file holds the empty state from here on, so a crash before the first command leaves it usable
+        commitState();
+    }
+
+    private GatorTicketMaster(PrintWriter writer, ReservationStore store, int waitlistMemoryLimit,
+                              MappedEngineState mappedState) {
+        this.seatReservations       = store;
+        this.waitlistMemoryLimit    = waitlistMemoryLimit;
+        this.mappedState            = mappedState;
+        this.stateFile              = mappedState == null ? null : mappedState.file();
+        this.sections               = new LinkedHashMap<>();
+        this.sectionOrder           = new ArrayList<>();
+        this.seatSections           = new SeatRangeMap<>();
+        this.waitingSections        = mappedState == null ? new IntObjectHashMap<>() : null;
+        if (mappedState != null) {
+            loadMappedSections();
+            clock       = mappedState.clock();
+            arrivals    = mappedState.arrivals();
+        }
+        this.defaultSection         = createSection("");
+        this.admission              = AdmissionPolicy.fromSystemProperties();
+        this.slowCommands           = SlowCommandRecorder.fromSystemProperties();
+        this.outputStream           = writer;
+    }
+
+    /**
+     * Creates an engine, keeping its state in the file named by -Dgtm.state.file if that is set.
+     * @param writer the writer that receives the output of every command
+     * @return the new engine
+     * @throws IOException if the state file cannot be used
+     */
+    public static GatorTicketMaster open(PrintWriter writer) throws IOException {
+        String stateFile = System.getProperty("gtm.state.file");
+        if (stateFile == null) {
+            return new GatorTicketMaster(writer);
+        }
+        return new GatorTicketMaster(writer, MappedStateFile.open(new File(stateFile)));
+    }
+
+    // A seating section with its own free seats and its own waitlist
+    static class Section {
+        final String name;
+        // The position of the section in creation order
+        final int index;
+        final SeatPool availableSeats;
+        final Waitlist waitlist;
+
+        Section(String name, int index, SeatPool availableSeats, Waitlist waitlist) {
+            this.name           = name;
+            this.index          = index;
+            this.availableSeats = availableSeats;
+            this.waitlist       = waitlist;
+        }
+
+        /**
+         * Returns the text naming this section in an output line
+         * @return " in section <name>", or an empty string for the default section
+         */
+        String label() {
+            return name.isEmpty() ? "" : " in section " + name;
+        }
+    }
+
+    // Thrown by a command that could not be applied and left the engine exactly as it was, so it can be
+    // answered with an error and left out of the journal
+    static class CommandFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CommandFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
     }
 
     // Node class for waitlist entries
     static class WaitlistEntry implements Comparable<WaitlistEntry> {
+        // Number of rank units per priority point, so aging rates can be fractional points per command
+        static final long AGING_SCALE = 1000;
+
         int userID;
         int priority;
         long timestamp;
+        long agingOffset;
 
-        public WaitlistEntry(int userID, int priority) {
-            this.userID     = userID;
-            this.priority   = priority;
-            this.timestamp  = System.nanoTime();
+        /**
+         * Creates a waitlist entry that ages from the moment it is enqueued.
+         * The effective priority at clock T is priority + rate * (T - enqueueClock) / AGING_SCALE. The rate * T term
+         * is shared by every entry, so entries are ordered by priority * AGING_SCALE - rate * enqueueClock alone and
+         * that order never changes while they wait; no heap entry has to be touched as time passes.
+         * @param userID the ID of the user
+         * @param priority the base priority of the user
+         * @param timestamp the arrival order of the entry; earlier arrivals win ties
+         * @param agingOffset rate * enqueueClock, or 0 if aging is disabled
+         */
+        public WaitlistEntry(int userID, int priority, long timestamp, long agingOffset) {
+            this.userID         = userID;
+            this.priority       = priority;
+            this.timestamp      = timestamp;
+            this.agingOffset    = agingOffset;
+        }
+
+        /**
+         * Returns the time-independent ordering key of the entry; a larger rank is served first.
+         * @return the base priority scaled by AGING_SCALE minus the aging offset
+         */
+        long rank() {
+            return priority * AGING_SCALE - agingOffset;
         }
 
         @Override
         public int compareTo(WaitlistEntry other) {
-            if (this.priority != other.priority) {
-                return other.priority - this.priority; // Higher priority first
+            if (this.rank() != other.rank()) {
+                return Long.compare(other.rank(), this.rank()); // Higher effective priority first
             }
             return Long.compare(this.timestamp, other.timestamp); // Earlier timestamp first
         }
     }
 
     /**
-     * Initialize the ticketing system with the given number of seats.
+     * Returns the feed on which every change to reservations and the waitlist is published.
+     * The feed is created on first use; until then no events are built.
+     * @return the change feed of this engine
+     */
+    public ReservationFeed changeFeed() {
+        if (feed == null) {
+            feed = new ReservationFeed();
+        }
+        return feed;
+    }
+
+    /**
+     * Describes the settings that decide how this engine responds to a sequence of commands. Two engines with
+     * the same settings respond identically to the same commands, which is what a replica relies on.
+     * @return the settings as space-separated property=value pairs
+     */
+    public String settings() {
+        return "gtm.aging.rate=" + agingRate + " gtm.waitlist.memoryLimit=" + waitlistMemoryLimit + " " + admission.settings();
+    }
+
+    /**
+     * Offers the events of the commands executed since the last flush to the change feed's subscribers as one batch.
+     * The server flushes once per batch of commands it applies, so delivery is paid per batch rather than per command.
+     */
+    public void flushChangeFeed() {
+        if (feed != null) {
+            feed.flush();
+        }
+    }
+
+    /**
+     * Publishes a change event if anyone has asked for the change feed
+     * @param type the kind of change
+     * @param userID the user concerned
+     * @param seatID the seat concerned, or 0
+     * @param priority the priority concerned, or 0
+     */
+    private void emit(ReservationEvent.Type type, int userID, int seatID, int priority) {
+        if (feed != null) {
+            feed.publish(type, userID, seatID, priority);
+        }
+    }
+
+    /**
+     * Returns the section with the given name, creating it with no seats if it does not exist yet.
+     * Only commands that add seats create sections, so a misspelled name elsewhere cannot add one.
+     * @param name the name of the section, or an empty string for the default section
+     * @return the section
+     */
+    private Section createSection(String name) {
+        Section section = sections.get(name);
+        if (section == null) {
+            if (mappedState == null) {
+                section = new Section(name, sectionOrder.size(), new HeapSeatPool(), new SpillingWaitlist(waitlistMemoryLimit));
+            } else {
+                int index   = mappedState.addSection(name);
+                section     = new Section(name, index, mappedState.seatPool(index), mappedState.waitlist(index));
+            }
+            addSection(section);
+        }
+        return section;
+    }
+
+    private void addSection(Section section) {
+        sections.put(section.name, section);
+        sectionOrder.add(section);
+    }
+
+    /**
+     * Brings the sections and seat ranges in line with the state file: opens the sections it holds that the
+     * engine has not opened yet and drops those it no longer holds, after a rollback of the command that added them.
+     */
+    private void loadMappedSections() {
+        while (sectionOrder.size() > mappedState.sectionCount()) {
+            sections.remove(sectionOrder.remove(sectionOrder.size() - 1).name);
+        }
+        for (int i = sectionOrder.size(); i < mappedState.sectionCount(); i++) {
+            addSection(new Section(mappedState.sectionName(i), i, mappedState.seatPool(i), mappedState.waitlist(i)));
+        }
+
+        seatSections = new SeatRangeMap<>();
+        for (int r = 0; r < mappedState.rangeCount(); r++) {
+            seatSections.append(mappedState.rangeStart(r), mappedState.rangeEnd(r), sectionOrder.get(mappedState.rangeSection(r)));
+        }
+        totalSeatCount = mappedState.lastSeat();
+    }
+
+    /**
+     * Returns the section whose waitlist holds the given user
+     * @param userID the ID of the user
+     * @return the section, or null if the user is not waiting
+     */
+    private Section waitingSection(int userID) {
+        if (waitingSections != null) {
+            return waitingSections.get(userID);
+        }
+        long location = mappedState.waitingIndex().get(userID, -1);
+        return location == -1 ? null : sectionOrder.get((int) (location >>> 32));
+    }
+
+    /**
+     * Returns the existing section with the given name, printing an error message if there is none.
+     * @param name the name of the section, or an empty string for the default section
+     * @return the section, or null if no seats were ever added to a section of that name
+     */
+    private Section section(String name) {
+        Section section = sections.get(name);
+        if (section == null) {
+            outputStream.println("Section " + name + " does not exist");
+        }
+        return section;
+    }
+
+    /**
+     * Numbers the given count of new seats after the existing ones and assigns them to a section.
+     * @param count the number of seats to add
+     * @param section the section that owns the new seats
+     * @return the ID of the first new seat
+     */
+    private int allocateSeats(int count, Section section) {
+        int startSeat = totalSeatCount + 1;
+        if (mappedState != null) {
+            mappedState.appendRange(startSeat, totalSeatCount + count, section.index);
+        }
+        totalSeatCount += count;
+        seatSections.append(startSeat, totalSeatCount, section);
+        return startSeat;
+    }
+
+    /**
+     * Returns the number of users waiting in all sections
+     * @return the total waitlist size
+     */
+    private int waitlistSize() {
+        int size = 0;
+        for (Section section : sections.values()) {
+            size += section.waitlist.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the swaps made so far by the free-seat heaps and waitlists of all sections
+     * @return the total number of heap sift steps
+     */
+    private long siftSteps() {
+        long steps = 0;
+        for (Section section : sections.values()) {
+            steps += section.availableSeats.siftSteps() + section.waitlist.siftSteps();
+        }
+        return steps;
+    }
+
+    /**
+     * Initialize the ticketing system with the given number of seats in the default section.
      * @param seatCount the number of seats to initialize the system with
      */
     public void initialize(int seatCount) {
+        initialize(seatCount, defaultSection);
+    }
+
+    /**
+     * Initialize the given number of seats in a section. Each call numbers its seats after the existing ones,
+     * so a venue is set up with one Initialize per section.
+     * @param seatCount the number of seats to initialize the section with
+     * @param section the section that owns the seats
+     */
+    private void initialize(int seatCount, Section section) {
         if (seatCount <= 0) {
             outputStream.println("Invalid input. Please provide a valid number of seats.");
             return;
         }
 
-        totalSeatCount = seatCount;
-        for (int i = 1; i <= seatCount; i++) {
+        int startSeat = allocateSeats(seatCount, section);
+        for (int i = startSeat; i <= totalSeatCount; i++) {
             // Add each seat to the heap
-            availableSeats.insert(i);
+            section.availableSeats.insert(i);
         }
-        outputStream.println(seatCount + " Seats are made available for reservation");
+        outputStream.println(seatCount + " Seats are made available for reservation" + section.label());
     }
 
     /**
-     * Prints the number of seats available and the number of users in the waitlist
+     * Prints the number of seats available and the number of users in the waitlist, over all sections
      */
     public void available() {
-        outputStream.println("Total Seats Available : " + availableSeats.size() + ", Waitlist : " + waitlist.size());
+        int seats = 0;
+        for (Section section : sections.values()) {
+            seats += section.availableSeats.size();
+        }
+        outputStream.println("Total Seats Available : " + seats + ", Waitlist : " + waitlistSize());
     }
 
     /**
-     * Reserve a seat for the given user
+     * Prints the number of seats available and the number of users in the waitlist of one section
+     * @param section the section
+     */
+    private void available(Section section) {
+        outputStream.println("Total Seats Available" + section.label() + " : " + section.availableSeats.size()
+                + ", Waitlist : " + section.waitlist.size());
+    }
+
+    /**
+     * Reserve a seat in the default section for the given user
      * @param userID the ID of the user to reserve a seat for
      * @param userPriority the priority of the user
      */
     public void reserve(int userID, int userPriority) {
+        reserve(userID, userPriority, defaultSection);
+    }
+
+    /**
+     * Reserve a seat in the given section, or join that section's waitlist if it has no free seat
+     * @param userID the ID of the user to reserve a seat for
+     * @param userPriority the priority of the user
+     * @param section the section to reserve in
+     */
+    private void reserve(int userID, int userPriority, Section section) {
+        // Turn away a user who sent too many requests before anything else is looked at
+        if (admission.admitRequest(userID, clock) != AdmissionPolicy.Decision.ADMITTED) {
+            reject(userID, userPriority, section, AdmissionPolicy.Decision.RATE_LIMITED);
+            return;
+        }
+
+        // A user holds at most one seat or one place in line, so a second request would orphan the first
+        int reservedSeat = seatReservations.findSeat(userID);
+        if (reservedSeat != ReservationStore.NO_SEAT) {
+            outputStream.println("User " + userID + " already has a reservation for seat " + reservedSeat);
+            emit(ReservationEvent.Type.REJECTED, userID, 0, userPriority);
+            return;
+        }
+        if (waitingSection(userID) != null) {
+            outputStream.println("User " + userID + " is already in the waiting list");
+            emit(ReservationEvent.Type.REJECTED, userID, 0, userPriority);
+            return;
+        }
+
         // If there are available seats, assign one to the user
-        if (!availableSeats.isEmpty()) {
-            int seatID = (int) availableSeats.extractMin();
-            seatReservations.insert(userID, seatID);
+        if (!section.availableSeats.isEmpty()) {
+            int seatID;
+            try {
+                seatID = section.availableSeats.extractMin();
+                seatReservations.insert(userID, seatID);
+            } catch (UncheckedIOException e) {
+                // Only a mapped store fails to grow, and execute rolls its state file back to before the command,
+                // so undo the only other trace of the request
+                admission.refundRequest(userID);
+                throw new CommandFailedException(e.getMessage(), e);
+            }
             outputStream.println("User " + userID + " reserved seat " + seatID);
+            emit(ReservationEvent.Type.RESERVED, userID, seatID, userPriority);
         } else {
-            // Otherwise, add the user to the waitlist
-            waitlist.insert(new WaitlistEntry(userID, userPriority));
-            outputStream.println("User " + userID + " is added to the waiting list");
+            // Otherwise, add the user to the waitlist if the admission policy lets them join it
+            AdmissionPolicy.Decision decision = admission.admitToWaitlist(userPriority, section.waitlist.size());
+            if (decision != AdmissionPolicy.Decision.ADMITTED) {
+                reject(userID, userPriority, section, decision);
+                return;
+            }
+            try {
+                section.waitlist.insert(new WaitlistEntry(userID, userPriority, arrivals, agingRate * clock));
+            } catch (UncheckedIOException e) {
+                // The waitlist is unchanged, so undo the only other trace of the request
+                admission.refundRequest(userID);
+                throw new CommandFailedException(e.getMessage(), e);
+            }
+            arrivals++;
+            if (waitingSections != null) {
+                waitingSections.put(userID, section);
+            }
+            outputStream.println("User " + userID + " is added to the waiting list" + section.label());
+            emit(ReservationEvent.Type.WAITLISTED, userID, 0, userPriority);
         }
     }
 
+    /**
+     * Reports a Reserve request turned away by the admission policy. Nothing else changes.
+     * @param userID the ID of the user
+     * @param userPriority the priority of the request
+     * @param section the section the request was for
+     * @param decision the reason for the rejection
+     */
+    private void reject(int userID, int userPriority, Section section, AdmissionPolicy.Decision decision) {
+        switch (decision) {
+            case RATE_LIMITED:
+                outputStream.println("User " + userID + " is rejected: too many requests");
+                break;
+            case WAITLIST_FULL:
+                outputStream.println("User " + userID + " is rejected: the waiting list is full" + section.label());
+                break;
+            case PRIORITY_TOO_LOW:
+                outputStream.println("User " + userID + " is rejected: priority " + userPriority + " is below "
+                        + admission.minPriority() + " while the waiting list is busy" + section.label());
+                break;
+        }
+        emit(ReservationEvent.Type.REJECTED, userID, 0, userPriority);
+    }
+
     /**
      * Cancel the reservation of the user for the given seat
      * If the user has no reservation, print an error message
@@ -86,34 +503,63 @@ class GatorTicketMaster {
      * @param userID the ID of the user to cancel the reservation
      */
     public void cancel(int seatID, int userID) {
-        // Find the seat with the given userID
-        RedBlackTree.Node node = seatReservations.findNode(userID);
+        // Find the reservation with the given userID, keeping a handle so the delete needs no second search
+        Object reservation = seatReservations.locate(userID);
 
         // User has no reservation to cancel
-        if (node == null) {
+        if (reservation == null) {
             outputStream.println("User " + userID + " has no reservation to cancel");
             return;
         }
 
         // User has no reservation for the given seat to cancel
-        if (node.seatID != seatID) {
+        if (seatReservations.seatAt(reservation) != seatID) {
             outputStream.println("User " + userID + " has no reservation for seat " + seatID + " to cancel");
             return;
         }
 
         // Delete the seat from the tree
-        seatReservations.deleteNode(userID);
+        seatReservations.deleteAt(reservation);
         outputStream.println("User " + userID + " canceled their reservation");
+        emit(ReservationEvent.Type.CANCELED, userID, seatID, 0);
+        reassign(seatID, seatSections.get(seatID));
+    }
 
+    /**
+     * Gives a freed seat to the highest priority user waiting in its section, or returns it to the section's free seats.
+     * @param seatID the freed seat
+     * @param section the section that owns the seat
+     */
+    private void reassign(int seatID, Section section) {
         // If there are users in the waitlist, assign the new seat to the user with the highest priority
-        if (!waitlist.isEmpty()) {
-            WaitlistEntry entry = (WaitlistEntry) waitlist.extractMin();
+        if (!section.waitlist.isEmpty()) {
+            WaitlistEntry entry = section.waitlist.extractMin();
+            if (waitingSections != null) {
+                waitingSections.remove(entry.userID);
+            }
             seatReservations.insert(entry.userID, seatID);
             outputStream.println("User " + entry.userID + " reserved seat " + seatID);
+            emit(ReservationEvent.Type.PROMOTED, entry.userID, seatID, entry.priority);
         } else {
             // Otherwise, add the seat back to the available seats
-            availableSeats.insert(seatID);
+            section.availableSeats.insert(seatID);
+        }
+    }
+
+    /**
+     * Removes the user from whichever section's waitlist holds them
+     * @param userID the ID of the user to remove
+     * @return true if the user was waiting, otherwise false
+     */
+    private boolean removeFromWaitlist(int userID) {
+        Section section = waitingSection(userID);
+        if (section == null) {
+            return false;
+        }
+        if (waitingSections != null) {
+            waitingSections.remove(userID);
         }
+        return section.waitlist.remove(userID);
     }
 
     /**
@@ -121,8 +567,9 @@ class GatorTicketMaster {
      * @param userID the ID of the user to remove
      */
     public void exitWaitlist(int userID) {
-        if (waitlist.remove(userID)) {
+        if (removeFromWaitlist(userID)) {
             outputStream.println("User " + userID + " is removed from the waiting list");
+            emit(ReservationEvent.Type.EXITED_WAITLIST, userID, 0, 0);
         } else {
             outputStream.println("User " + userID + " is not in waitlist");
         }
@@ -134,43 +581,50 @@ class GatorTicketMaster {
      * @param newPriority the new priority of the user
      */
     public void updatePriority(int userID, int newPriority) {
-        if (waitlist.updatePriority(userID, newPriority)) {
+        Section section = waitingSection(userID);
+        boolean updated;
+        try {
+            updated = section != null && section.waitlist.updatePriority(userID, newPriority);
+        } catch (UncheckedIOException e) {
+            // The spilled entry stays where it was
+            throw new CommandFailedException(e.getMessage(), e);
+        }
+        if (updated) {
             outputStream.println("User " + userID + " priority has been updated to " + newPriority);
+            emit(ReservationEvent.Type.PRIORITY_UPDATED, userID, 0, newPriority);
         } else {
             outputStream.println("User " + userID + " priority is not updated");
         }
     }
 
     /**
-     * Add the specified number of seats to the total count of available seats
-     * If there are users in the waitlist, assign the new seats to the users with the highest priority
-     * If there are no users in the waitlist, add the new seats to the available seats
+     * Add the specified number of seats to the default section
      * @param count the number of seats to add
      */
     public void addSeats(int count) {
+        addSeats(count, defaultSection);
+    }
+
+    /**
+     * Add the specified number of seats to a section
+     * If there are users in the section's waitlist, assign the new seats to the users with the highest priority
+     * If there are no users in the waitlist, add the new seats to the section's available seats
+     * @param count the number of seats to add
+     * @param section the section that owns the new seats
+     */
+    private void addSeats(int count, Section section) {
         if (count <= 0) {
             outputStream.println("Invalid input. Please provide a valid number of seats.");
             return;
         }
 
-        outputStream.println("Additional " + count + " Seats are made available for reservation");
-
-        int startSeat = totalSeatCount + 1;
-        // System.out.println("total seat Count: " + totalSeatCount);
-        // System.out.println("count: " + count);
-        totalSeatCount += count;
+        outputStream.println("Additional " + count + " Seats are made available for reservation" + section.label());
 
         // Loop through the new seats and assign them to the highest priority users in the waitlist
         // If there are no users in the waitlist, add the seats to the available seats
+        int startSeat = allocateSeats(count, section);
         for (int i = startSeat; i <= totalSeatCount; i++) {
-            if (!waitlist.isEmpty()) {
-                WaitlistEntry entry = (WaitlistEntry) waitlist.extractMin();
-                // System.out.println("entry: " + entry.userID);
-                seatReservations.insert(entry.userID, i);
-                outputStream.println("User " + entry.userID + " reserved seat " + i);
-            } else {
-                availableSeats.insert(i);
-            }
+            reassign(i, section);
         }
     }
 
@@ -178,15 +632,49 @@ class GatorTicketMaster {
      * Prints the current reservations in the system sorted by seat ID
      */
     public void printReservations() {
-        // Get the list of seatReservations from the Red Black Tree
-        List<RedBlackTree.Node> nodes = seatReservations.inorderTraversal();
-        
+        // Pack each reservation into a long with the seat ID in the high half, so sorting the array sorts by seat ID
+        long[] reservations = new long[seatReservations.size()];
+        int[] count         = new int[1];
+        seatReservations.forEach((userID, seatID) ->
+                reservations[count[0]++] = ((long) seatID << 32) | (userID & 0xFFFFFFFFL));
+
+        // A large dump is sorted and formatted in chunks on all cores
+        if (reservations.length >= PARALLEL_PRINT_THRESHOLD) {
+            Arrays.parallelSort(reservations);
+            writeChunks(ReservationDump.render(reservations, ForkJoinPool.commonPool()));
+            return;
+        }
+
         // Sort the list by seat ID
-        nodes.sort((a, b) -> Integer.compare(a.seatID, b.seatID));
+        Arrays.sort(reservations);
         
         // Print the sorted list
-        for (RedBlackTree.Node node : nodes) {
-            outputStream.println("Seat " + node.seatID + ", User " + node.userID);
+        for (long reservation : reservations) {
+            outputStream.println("Seat " + (int) (reservation >>> 32) + ", User " + (int) reservation);
+        }
+    }
+
+    /**
+     * Writes formatted output chunks in order. With an output file they go to its channel in gathering writes,
+     * after everything printed before them has been flushed; otherwise they are copied into the writer.
+     * @param chunks the formatted chunks, each holding ASCII text
+     */
+    private void writeChunks(ByteBuffer[] chunks) {
+        if (outputChannel == null) {
+            for (ByteBuffer chunk : chunks) {
+                outputStream.write(new String(chunk.array(), 0, chunk.limit(), StandardCharsets.ISO_8859_1));
+            }
+            return;
+        }
+
+        outputStream.flush();
+        try {
+            // A gathering write may stop short of the end, so repeat until the last chunk is written
+            while (chunks.length > 0 && chunks[chunks.length - 1].hasRemaining()) {
+                outputChannel.write(chunks);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the reservations", e);
         }
     }
 
@@ -210,40 +698,37 @@ class GatorTicketMaster {
             return;
         }
 
+        List<Integer> releasedUsers = new ArrayList<>();
         List<Integer> releasedSeats = new ArrayList<>();
 
-        // Collect all seats that will be released
-        for (int userID = userID1; userID <= userID2; userID++) {
-            RedBlackTree.Node node = seatReservations.findNode(userID);
-            if (node != null) {
-                releasedSeats.add(node.seatID);
-                seatReservations.deleteNode(userID);
-            }
+        // Collect all seats that will be released, in user ID order, with one range scan of the store
+        seatReservations.forEachInRange(userID1, userID2, (userID, seatID) -> {
+            releasedUsers.add(userID);
+            releasedSeats.add(seatID);
+        });
 
+        for (int i = 0; i < releasedUsers.size(); i++) {
+            seatReservations.delete(releasedUsers.get(i));
+            emit(ReservationEvent.Type.RELEASED, releasedUsers.get(i), releasedSeats.get(i), 0);
+        }
+
+        for (int userID = userID1; userID <= userID2; userID++) {
             // Remove the user from the waitlist
-            waitlist.remove(userID);
+            if (removeFromWaitlist(userID)) {
+                emit(ReservationEvent.Type.EXITED_WAITLIST, userID, 0, 0);
+            }
         }
 
         // Waitlist is empty
-        if (waitlist.isEmpty()) {
+        if (waitlistSize() == 0) {
             outputStream.println("Reservations/waitlist of the users in the range [" + userID1 + ", " + userID2+ "] have been released");
-
-            // Add released seats back to available seats
-            for (int seatID : releasedSeats) {
-                availableSeats.insert(seatID);
-            }
         } else { // Waitlist is not empty
             outputStream.println("Reservations of the Users in the range [" + userID1 + ", " + userID2 + "] are released");
+        }
 
-            for (int seatID : releasedSeats) {
-                if (!waitlist.isEmpty()) {
-                    WaitlistEntry entry = (WaitlistEntry) waitlist.extractMin();
-                    seatReservations.insert(entry.userID, seatID);
-                    outputStream.println("User " + entry.userID + " reserved seat " + seatID);
-                } else {
-                    availableSeats.insert(seatID);
-                }
-            }
+        // Each released seat goes to the waitlist of its own section, or back to that section's available seats
+        for (int seatID : releasedSeats) {
+            reassign(seatID, seatSections.get(seatID));
         }
     }
 
@@ -254,88 +739,383 @@ class GatorTicketMaster {
     public void quit() {
         // Print termination message
         outputStream.print("Program Terminated!!");
+        release();
+    }
+
+    /**
+     * Commits the state file and releases everything the engine holds: the slow command ring, spilled waitlist
+     * files, the change feed and the output writer, which is flushed. Runs once; later calls do nothing.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        // Commit the state file and mark it clean
+        closeState();
+
+        // Report the slowest recent commands
+        slowCommands.close(System.err);
+
+        // Delete any waitlist entries spilled to disk
+        for (Section section : sections.values()) {
+            section.waitlist.close();
+        }
+
+        // Deliver the last events and complete the change feed
+        if (feed != null) {
+            feed.close();
+        }
         
         // Close the output writer to release resources
         outputStream.close();
     }
 
     /**
-     * Main method for running the program from the command line.
-     * @param args arguments passed to the program from the command line
+     * Makes every command executed so far part of the state a restarted engine resumes from.
+     * Does nothing if the engine has no state file or it is already closed.
      */
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java GatorTicketMaster <input_file>");
+    public void commitState() {
+        if (stateFile == null || stateFile.isClosed()) {
+            return;
+        }
+        mappedState.saveCounters(clock, arrivals);
+        stateFile.commit();
+    }
+
+    /**
+     * Commits the state file as commitState does, recording how much of the server's journal it reflects.
+     * @param journalOffset the length of the journal, which holds every command applied so far
+     */
+    public void commitState(long journalOffset) {
+        if (stateFile == null || stateFile.isClosed()) {
+            return;
+        }
+        stateFile.setJournalOffset(journalOffset);
+        commitState();
+    }
+
+    /**
+     * Commits and closes the state file as closeState does, recording how much of the server's journal it reflects.
+     * @param journalOffset the length of the journal, which holds every command applied so far
+     */
+    public void closeState(long journalOffset) {
+        if (stateFile == null || stateFile.isClosed()) {
+            return;
+        }
+        stateFile.setJournalOffset(journalOffset);
+        closeState();
+    }
+
+    /**
+     * Commits the state file and closes it, which forces it to disk and marks it clean. Everything already lies
+     * in the file, so nothing is written out but the counters.
+     * Does nothing if the engine has no state file or it is already closed.
+     */
+    public void closeState() {
+        if (stateFile == null || stateFile.isClosed()) {
+            return;
+        }
+        mappedState.saveCounters(clock, arrivals);
+        try {
+            stateFile.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close the state file", e);
+        }
+    }
+
+    /**
+     * Verifies the structural invariants of the reservation store and of every section's free-seat heap and waitlist.
+     * @throws IllegalStateException describing the first violation found
+     */
+    void checkInvariants() {
+        seatReservations.checkInvariants();
+        for (Section section : sections.values()) {
+            section.availableSeats.checkInvariants();
+            section.waitlist.checkInvariants();
+        }
+        int waiting = waitingSections != null ? waitingSections.size() : mappedState.waitingIndex().size();
+        if (waiting != waitlistSize()) {
+            throw new IllegalStateException(waiting + " users are indexed as waiting, " + waitlistSize() + " are in line");
+        }
+    }
+
+    /**
+     * Returns the optional section argument of a command
+     * @param parts the command line split at parentheses and commas
+     * @param index the position of the section argument
+     * @return the section name, or an empty string for the default section
+     */
+    private static String sectionName(String[] parts, int index) {
+        return index < parts.length ? parts[index].trim() : "";
+    }
+
+    /**
+     * Parses a single command line and dispatches it to the matching operation.
+     * Lines with an unknown command are ignored, matching the behaviour of the file reader.
+     * A line with malformed arguments, or one that throws CommandFailedException, leaves the engine unchanged.
+     * With a state file, a command that fails in any way is rolled back in the file, and one that fails because
+     * the file cannot grow is reported as a CommandFailedException.
+     * @param line the raw command line, e.g. "Reserve(1, 2)"
+     * @return false if the command was Quit and no further commands should be processed, otherwise true
+     */
+    public boolean execute(String line) {
+        if (stateFile != null && stateFile.isClosed()) {
+            throw new CommandFailedException("The state file has been committed; the engine accepts no more commands", null);
+        }
+        clock++;
+        String[] parts = line.split("[(),]");
+        String command = parts[0].trim();
+
+        // Time the command and count the work it does, for the slow command recorder and Flight Recorder.
+        // The event class is only loaded once Flight Recorder runs, as loading it starts much of JFR.
+        SlowCommandEvent event = null;
+        if (FlightRecorder.isInitialized()) {
+            event = new SlowCommandEvent();
+            event.begin();
+        }
+        long start              = System.nanoTime();
+        long siftsBefore        = siftSteps();
+        long rotationsBefore    = seatReservations.rebalanceSteps();
+        int savepoint           = stateFile == null ? 0 : stateFile.savepoint();
+        long arrivalsBefore     = arrivals;
+
+        boolean more;
+        try {
+            more = dispatch(command, parts);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException | CommandFailedException e) {
+            // Malformed arguments are parsed before anything changes, so like a failed command the line leaves
+            // no trace, not even a tick of the logical clock
+            rollbackState(savepoint, arrivalsBefore);
+            clock--;
+            throw e;
+        } catch (UncheckedIOException e) {
+            if (stateFile == null) {
+                throw e;
+            }
+            // The state file could not grow in the middle of the command
+            rollbackState(savepoint, arrivalsBefore);
+            clock--;
+            throw new CommandFailedException(e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // Not a failure the engine expects, but a half-applied command must not reach the next commit
+            rollbackState(savepoint, arrivalsBefore);
+            throw e;
+        }
+
+        long duration = System.nanoTime() - start;
+        if (event != null) {
+            event.end();
+        }
+        if (slowCommands.isSlow(duration)) {
+            recordSlowCommand(event, line, command, duration, siftSteps() - siftsBefore,
+                    seatReservations.rebalanceSteps() - rotationsBefore);
+        }
+        return more;
+    }
+
+    /**
+     * Undoes what a failed command changed in the state file and in the engine fields that mirror it.
+     * Does nothing if the engine has no state file or it is already closed.
+     * @param savepoint the state file's savepoint from before the command
+     * @param arrivalsBefore the arrival counter from before the command
+     */
+    private void rollbackState(int savepoint, long arrivalsBefore) {
+        if (stateFile == null || stateFile.isClosed()) {
             return;
         }
+        stateFile.rollbackTo(savepoint);
+        arrivals = arrivalsBefore;
+        loadMappedSections();
+    }
 
-        String inputFile    = args[0];
-        String outputFile   = inputFile.substring(0, inputFile.lastIndexOf('.')) + "_output_file.txt";
+    /**
+     * Records a slow command in the ring and, if a recording has the event enabled, commits its Flight Recorder event.
+     * @param event the command's event, already ended, or null if Flight Recorder is not running
+     * @param line the command line
+     * @param command the command name
+     * @param duration how long the command took, in nanoseconds
+     * @param siftSteps the heap sift steps taken by the command
+     * @param rotations the tree rotations taken by the command
+     */
+    private void recordSlowCommand(SlowCommandEvent event, String line, String command, long duration,
+                                   long siftSteps, long rotations) {
+        int treeSize        = seatReservations.size();
+        int waitlistDepth   = waitlistSize();
+        slowCommands.record(clock, line.trim(), duration, treeSize, waitlistDepth, siftSteps, rotations);
 
+        if (event != null && event.shouldCommit()) {
+            int open    = line.indexOf('(');
+            int close   = line.lastIndexOf(')');
+            event.command       = command;
+            event.arguments     = open >= 0 && close > open ? line.substring(open + 1, close).trim() : "";
+            event.treeSize      = treeSize;
+            event.waitlistDepth = waitlistDepth;
+            event.siftSteps     = siftSteps;
+            event.treeRotations = rotations;
+            event.commit();
+        }
+    }
+
+    /**
+     * Runs one parsed command.
+     * @param command the command name
+     * @param parts the command line split at parentheses and commas
+     * @return false if the command was Quit, otherwise true
+     */
+    private boolean dispatch(String command, String[] parts) {
+        switch (command) {
+            case "Initialize":
+                // Initialize the ticketing system with the given number of seats, in an optional section
+                initialize(Integer.parseInt(parts[1].trim()), createSection(sectionName(parts, 2)));
+                break;
+            case "Available": {
+                // Print the number of available seats and the number of users in the waitlist, overall or for one section
+                if (sectionName(parts, 1).isEmpty()) {
+                    available();
+                    break;
+                }
+                Section section = section(sectionName(parts, 1));
+                if (section != null) {
+                    available(section);
+                }
+                break;
+            }
+            case "Reserve": {
+                // Reserve a seat for the given user, in an optional section that must already exist
+                int userID          = Integer.parseInt(parts[1].trim());
+                int userPriority    = Integer.parseInt(parts[2].trim());
+                Section section     = section(sectionName(parts, 3));
+                if (section != null) {
+                    reserve(userID, userPriority, section);
+                }
+                break;
+            }
+            case "Cancel":
+                // Cancel the reservation for the given user
+                cancel(
+                        Integer.parseInt(parts[1].trim()),
+                        Integer.parseInt(parts[2].trim()));
+                break;
+            case "ExitWaitlist":
+                // Remove the user from the waitlist
+                exitWaitlist(Integer.parseInt(parts[1].trim()));
+                break;
+            case "UpdatePriority":
+                // Update the priority of the user
+                updatePriority(
+                        Integer.parseInt(parts[1].trim()),
+                        Integer.parseInt(parts[2].trim()));
+                break;
+            case "AddSeats":
+                // Add the specified number of seats to the total count of available seats, in an optional section
+                addSeats(Integer.parseInt(parts[1].trim()), createSection(sectionName(parts, 2)));
+                break;
+            case "PrintReservations":
+                // Print the current seatReservations in the system, sorted by seat ID
+                printReservations();
+                break;
+            case "ReleaseSeats":
+                // Release the seats reserved by users in the given range
+                releaseSeats(Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+                break;
+            case "Quit":
+                // Terminate the program
+                quit();
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the commands of one input file on a new engine and writes the results to <input>_output_file.txt.
+     * @param inputFile the path of the input file
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    public static void processFile(String inputFile) throws IOException {
+        String outputFile               = inputFile.substring(0, inputFile.lastIndexOf('.')) + "_output_file.txt";
+        FileOutputStream output         = new FileOutputStream(outputFile);
+        GatorTicketMaster ticketMaster;
         try {
-            GatorTicketMaster ticketMaster  = new GatorTicketMaster(outputFile);
-            BufferedReader reader           = new BufferedReader(new FileReader(inputFile));
+            ticketMaster = open(new PrintWriter(new OutputStreamWriter(output)));
+        } catch (IOException | RuntimeException e) {
+            output.close();
+            throw e;
+        }
+        ticketMaster.outputChannel      = output.getChannel();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile))) {
             String line;
 
             // Read the input file line by line
             while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("[(),]");
-                String command = parts[0].trim();
-
-                // Process the command
-                switch (command) {
-                    case "Initialize":
-                        // Initialize the ticketing system with the given number of seats
-                        ticketMaster.initialize(Integer.parseInt(parts[1].trim()));
-                        break;
-                    case "Available":
-                        // Print the number of available seats and the number of users in the waitlist
-                        ticketMaster.available();
-                        break;
-                    case "Reserve":
-                        // Reserve a seat for the given user
-                        ticketMaster.reserve(
-                                Integer.parseInt(parts[1].trim()),
-                                Integer.parseInt(parts[2].trim()));
-                        break;
-                    case "Cancel":
-                        // Cancel the reservation for the given user
-                        ticketMaster.cancel(
-                                Integer.parseInt(parts[1].trim()),
-                                Integer.parseInt(parts[2].trim()));
-                        break;
-                    case "ExitWaitlist":
-                        // Remove the user from the waitlist
-                        ticketMaster.exitWaitlist(Integer.parseInt(parts[1].trim()));
-                        break;
-                    case "UpdatePriority":
-                        // Update the priority of the user
-                        ticketMaster.updatePriority(
-                                Integer.parseInt(parts[1].trim()),
-                                Integer.parseInt(parts[2].trim()));
-                        break;
-                    case "AddSeats":
-                        // Add the specified number of seats to the total count of available seats
-                        ticketMaster.addSeats(Integer.parseInt(parts[1].trim()));
-                        break;
-                    case "PrintReservations":
-                        // Print the current seatReservations in the system, sorted by seat ID
-                        ticketMaster.printReservations();
-                        break;
-                    case "ReleaseSeats":
-                        // Release the seats reserved by users in the given range
-                        ticketMaster.releaseSeats(Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
-                        break;
-                    case "Quit":
-                        // Terminate the program
-                        ticketMaster.quit();
-                        return;
+                if (!ticketMaster.execute(line)) {
+                    return;
+                }
+                ticketMaster.commitState();
+            }
+        } finally {
+            // Also after a command failed: keep the output written so far, commit the state file, if any,
+            // and delete spilled waitlist files, as a batch run goes on with other inputs in this JVM
+            ticketMaster.release();
+        }
+    }
+
+    /**
+     * Main method for running the program from the command line.
+     * @param args arguments passed to the program from the command line
+     */
+    public static void main(String[] args) {
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--server")) {
+            try {
+                // Serve the command syntax over TCP on localhost, journaling for a standby if a journal is given
+                if (args.length == 2) {
+                    TicketServer.start(Integer.parseInt(args[1]));
+                } else {
+                    TicketServer.startPrimary(Integer.parseInt(args[1]), new File(args[2]));
                 }
+            } catch (IOException e) {
+                System.err.println("Error starting the server: " + e.getMessage());
             }
-            // ticketMaster.quit();
-            // Close the output writer to release resources
-            outputStream.close();
-            reader.close();
+            return;
+        }
+
+        if (args.length == 3 && args[0].equals("--standby")) {
+            try {
+                // Follow the primary's journal and take over its port when it stops
+                TicketServer.startStandby(Integer.parseInt(args[1]), new File(args[2]));
+            } catch (IOException e) {
+                System.err.println("Error running the standby: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("--batch")) {
+            // Every worker would map the same state file
+            if (System.getProperty("gtm.state.file") != null) {
+                System.err.println("Error: -Dgtm.state.file cannot be used with --batch");
+                return;
+            }
+            try {
+                // Run every matching input file in this JVM
+                BatchRunner.run(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException e) {
+                System.err.println("Error listing the input files: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (args.length != 1) {
+            System.out.println("Usage: java GatorTicketMaster <input_file>");
+            System.out.println("       java GatorTicketMaster --server <port> [<journal_file>]");
+            System.out.println("       java GatorTicketMaster --standby <port> <journal_file>");
+            System.out.println("       java GatorTicketMaster --batch <directory | glob | input_file>...");
+            return;
+        }
+
+        try {
+            processFile(args[0]);
         } catch (IOException e) { 
             // Error handling
             System.err.println("Error processing the file: " + e.getMessage());
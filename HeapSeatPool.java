@@ -0,0 +1,33 @@
+// Free seats of a section held in an in-memory MinHeap
+
+/**
+ * The SeatPool of an engine without a state file: a MinHeap of seat IDs.
+ */
+public class HeapSeatPool implements SeatPool {
+    private final MinHeap heap = new MinHeap();
+
+    @Override
+    public void insert(int seatID) {
+        heap.insert(seatID);
+    }
+
+    @Override
+    public int extractMin() {
+        return (int) heap.extractMin();
+    }
+
+    @Override
+    public int size() {
+        return heap.size();
+    }
+
+    @Override
+    public long siftSteps() {
+        return heap.siftSteps();
+    }
+
+    @Override
+    public void checkInvariants() {
+        heap.checkInvariants();
+    }
+}
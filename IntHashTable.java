@@ -0,0 +1,191 @@
+// Open-addressing table of int keys shared by the primitive hash maps
+
+import java.util.Arrays;
+
+/**
+ * The probing logic of IntLongHashMap and IntObjectHashMap: int keys in a power-of-two array with linear probing,
+ * a load factor of at most one half and backward-shift deletion, so lookups never need tombstones.
+ * Subclasses keep their values in an array of the same capacity, indexed by the slot of the key.
+ * Tables kept outside the Java heap probe with the same home and canMoveBack rules.
+ */
+abstract class IntHashTable {
+    static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private boolean[] used;
+    private int size;
+
+    IntHashTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Replaces the value array with an empty one of the given capacity.
+     * @param capacity the new capacity
+     * @return the previous value array
+     */
+    abstract Object replaceValues(int capacity);
+
+    /**
+     * Copies a value into the current value array.
+     * @param source the value array to copy from, the current one or one returned by replaceValues
+     * @param from the slot in the source
+     * @param to the slot in the current value array
+     */
+    abstract void copyValue(Object source, int from, int to);
+
+    /**
+     * Returns the current value array, as passed to copyValue.
+     * @return the value array
+     */
+    abstract Object values();
+
+    /**
+     * Releases the value of a slot that has just been emptied.
+     * @param index the slot
+     */
+    void clearValue(int index) {
+    }
+
+    /**
+     * Returns the slot at which probing for the given key starts.
+     * @param key the key to hash
+     * @param mask the capacity of the table minus one
+     * @return the home slot of the key
+     */
+    static int home(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Decides during a backward-shift deletion whether the entry at next may move back into the hole at free.
+     * It may unless its home slot lies cyclically in (free, next], where a lookup would no longer pass the hole.
+     * @param home the home slot of the entry at next
+     * @param free the empty slot
+     * @param next the slot of the entry
+     * @param mask the capacity of the table minus one
+     * @return true if the entry may move into the hole
+     */
+    static boolean canMoveBack(int home, int free, int next, int mask) {
+        return ((next - home) & mask) >= ((next - free) & mask);
+    }
+
+    /**
+     * Returns the slot holding the given key, or the free slot where it would be inserted.
+     * @param key the key to find
+     * @return the index of the slot
+     */
+    final int find(int key) {
+        int mask    = keys.length - 1;
+        int index   = home(key, mask);
+        while (used[index] && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Checks whether a slot returned by find holds a key
+     * @param index the slot
+     * @return true if the slot is occupied
+     */
+    final boolean isUsed(int index) {
+        return used[index];
+    }
+
+    /**
+     * Returns the number of slots, occupied or not
+     * @return the capacity of the table
+     */
+    final int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the slot of the given key, claiming a free slot for it first if it is absent.
+     * The caller stores the value at the returned slot.
+     * @param key the key
+     * @return the slot of the key
+     */
+    final int claim(int key) {
+        int index = find(key);
+        if (!used[index]) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                index = find(key);
+            }
+            used[index] = true;
+            keys[index] = key;
+            size++;
+        }
+        return index;
+    }
+
+    /**
+     * Empties the given occupied slot, moving back any following entry of the probe run whose home slot lets it fill the hole.
+     * @param index the slot of the key to remove
+     */
+    final void release(int index) {
+        Object values   = values();
+        int mask        = keys.length - 1;
+        int free        = index;
+        int next        = (free + 1) & mask;
+        while (used[next]) {
+            if (canMoveBack(home(keys[next], mask), free, next, mask)) {
+                keys[free] = keys[next];
+                copyValue(values, next, free);
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[free] = false;
+        clearValue(free);
+        size--;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        Arrays.fill(used, false);
+        for (int i = 0; i < keys.length; i++) {
+            clearValue(i);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     * @return the size of the map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rehashes every entry into arrays of the given capacity
+     * @param capacity the new capacity, a power of two
+     */
+    private void resize(int capacity) {
+        int[] oldKeys       = keys;
+        boolean[] oldUsed   = used;
+        Object oldValues    = replaceValues(capacity);
+
+        keys = new int[capacity];
+        used = new boolean[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int index   = find(oldKeys[i]);
+                used[index] = true;
+                keys[index] = oldKeys[i];
+                copyValue(oldValues, i, index);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Open-addressing hash map from int keys to object values
+
+/**
+ * A compact map from int keys to non-null object values, probed like IntLongHashMap.
+ * Keys are kept unboxed and there is no entry object per mapping.
+ * @param <V> the type of the values
+ */
+public class IntObjectHashMap<V> extends IntHashTable {
+    private Object[] values;
+
+    public IntObjectHashMap() {
+        super(MIN_CAPACITY);
+        values = new Object[capacity()];
+    }
+
+    @Override
+    Object replaceValues(int capacity) {
+        Object[] old = values;
+        values = new Object[capacity];
+        return old;
+    }
+
+    @Override
+    void copyValue(Object source, int from, int to) {
+        values[to] = ((Object[]) source)[from];
+    }
+
+    @Override
+    Object values() {
+        return values;
+    }
+
+    @Override
+    void clearValue(int index) {
+        // Let the garbage collector have the value
+        values[index] = null;
+    }
+
+    /**
+     * Returns the value mapped to the given key.
+     * @param key the key to look up
+     * @return the mapped value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = find(key);
+        return isUsed(index) ? (V) values[index] : null;
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any previous value.
+     * @param key the key
+     * @param value the value, which must not be null
+     */
+    public void put(int key, V value) {
+        // Claim first, as claiming may replace the value array
+        int index       = claim(key);
+        values[index]   = value;
+    }
+
+    /**
+     * Removes the mapping of the given key.
+     * @param key the key to remove
+     * @return the value that was mapped to the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = find(key);
+        if (!isUsed(index)) {
+            return null;
+        }
+        V removed = (V) values[index];
+        release(index);
+        return removed;
+    }
+}
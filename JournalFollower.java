@@ -0,0 +1,171 @@
+// Replica that applies a primary's command journal
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds an engine that is kept in step with a CommandJournal by applying each complete journal line
+ * through the same operations the primary used. The engine's ordering decisions depend only on the
+ * command sequence, so the replica ends up with the same reservation tree and heaps as the primary.
+ */
+public class JournalFollower {
+    // How long the standby sleeps when the journal has no new commands
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File journalFile;
+    private final StringWriter engineOutput;
+    private final GatorTicketMaster engine;
+
+    private FileChannel journal;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    // Bytes of a line whose newline has not been written yet
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    // Offset just past the last complete line applied
+    private long position;
+    private long applied;
+    private boolean headerChecked;
+
+    public JournalFollower(File journalFile) {
+        this(journalFile, new StringWriter());
+    }
+
+    private JournalFollower(File journalFile, StringWriter engineOutput) {
+        this(journalFile, new GatorTicketMaster(new PrintWriter(engineOutput)), engineOutput, 0);
+    }
+
+    /**
+     * Creates a follower for an engine that already reflects the start of the journal
+     * @param journalFile the journal to follow
+     * @param engine the engine to apply commands to
+     * @param engineOutput the buffer the engine prints to
+     * @param position the journal offset from which the engine has not yet applied the commands
+     */
+    public JournalFollower(File journalFile, GatorTicketMaster engine, StringWriter engineOutput, long position) {
+        this.journalFile    = journalFile;
+        this.engineOutput   = engineOutput;
+        this.engine         = engine;
+        this.position       = position;
+    }
+
+    /**
+     * Applies every complete command currently in the journal. A trailing line without its newline is kept until the rest arrives.
+     * @return the number of commands applied
+     * @throws IOException if the journal cannot be read
+     */
+    public int catchUp() throws IOException {
+        if (journal == null) {
+            if (!journalFile.exists()) {
+                return 0;
+            }
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+
+            // Resuming after the header, so it is not met below
+            if (position > 0) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+                    CommandJournal.checkHeader(journalFile, reader.readLine(), engine.settings());
+                }
+                headerChecked = true;
+            }
+        }
+
+        int count = 0;
+        int read;
+        while ((read = journal.read(buffer, position + partialLine.size())) > 0) {
+            buffer.flip();
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n') {
+                    partialLine.write(b);
+                    continue;
+                }
+
+                // The first line is the header, which must match this engine's settings for the replay to be faithful
+                String line = partialLine.toString();
+                position += partialLine.size() + 1;
+                partialLine.reset();
+                if (!headerChecked) {
+                    CommandJournal.checkHeader(journalFile, line, engine.settings());
+                    headerChecked = true;
+                    continue;
+                }
+
+                // A complete command: apply it and discard its output, nobody is waiting for it here
+                TicketServer.apply(engine, engineOutput, line);
+                engine.commitState(position);
+                count++;
+            }
+            buffer.clear();
+        }
+        applied += count;
+        return count;
+    }
+
+    /**
+     * Follows the journal until the primary's lock is released, then applies whatever the primary wrote last.
+     * @return the primary lock, now held by this process
+     * @throws IOException if the journal cannot be read
+     */
+    public FileLock awaitTakeover() throws IOException {
+        while (true) {
+            // Only check the lock when the journal is idle, so catching up is never slowed by it
+            if (catchUp() == 0) {
+                FileLock lock = CommandJournal.tryLockPrimary(journalFile);
+                if (lock != null) {
+                    catchUp();
+                    truncateIncompleteLine();
+                    return lock;
+                }
+                LockSupport.parkNanos(POLL_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Cuts off a line the previous primary only partly wrote before it stopped, so new commands start on a fresh line.
+     * Such a command was never answered, because responses are only released after their batch is written.
+     * @throws IOException if the journal cannot be truncated
+     */
+    public void truncateIncompleteLine() throws IOException {
+        if (partialLine.size() == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+        }
+        partialLine.reset();
+    }
+
+    /**
+     * Returns the number of journaled commands applied so far
+     * @return the number of commands applied
+     */
+    public long appliedCount() {
+        return applied;
+    }
+
+    /**
+     * Returns the engine kept in step with the journal
+     * @return the replica's engine
+     */
+    public GatorTicketMaster engine() {
+        return engine;
+    }
+
+    /**
+     * Serves this replica's engine on the given port, journaling new commands after the existing ones.
+     * @param port the loopback port to listen on
+     * @param commandJournal the journal to append to, opened with the primary lock
+     * @throws IOException if the port cannot be bound
+     */
+    public void serve(int port, CommandJournal commandJournal) throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        new TicketServer(engine, engineOutput, commandJournal).serve(port);
+    }
+}
@@ -0,0 +1,174 @@
+// Load generator for the TicketServer front-end
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates many concurrent clients against a running TicketServer and reports the sustained
+ * throughput and latency percentiles. Each client runs on its own virtual thread and pipelines a
+ * batch of commands per round-trip.
+ */
+public class LoadGenerator {
+    private final int port;
+    private final int clients;
+    private final int pipelineDepth;
+    private final long deadline;
+    private final AtomicLong completed = new AtomicLong();
+
+    public LoadGenerator(int port, int clients, int pipelineDepth, long deadline) {
+        this.port           = port;
+        this.clients        = clients;
+        this.pipelineDepth  = pipelineDepth;
+        this.deadline       = deadline;
+    }
+
+    /**
+     * Returns the user ID of the given client's n-th user. Clients take turns through the user IDs, so their
+     * users stay disjoint for any number of clients, and a client that runs past the largest user ID starts over.
+     * @param clientID the index of the client, from 1 to clients
+     * @param slot the client's count of users so far
+     * @return the user ID
+     */
+    private int userID(int clientID, long slot) {
+        return (int) (clientID + (slot % (Integer.MAX_VALUE / clients)) * clients);
+    }
+
+    /**
+     * Runs one simulated client until the deadline and returns its per-request latencies.
+     * The client cycles through Reserve, UpdatePriority, ExitWaitlist and Available for its own user IDs
+     * so the waitlist stays bounded however long the run lasts.
+     * @param clientID the index of the client, used to keep user IDs disjoint
+     * @return the latencies of all requests in nanoseconds
+     * @throws IOException if the connection fails
+     */
+    private long[] runClient(int clientID) throws IOException {
+        long[] latencies    = new long[1024];
+        int count           = 0;
+        long nextSlot       = 0;
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            BufferedReader reader   = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Writer writer           = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            StringBuilder batch     = new StringBuilder();
+
+            while (System.nanoTime() < deadline) {
+                // Build one pipelined batch of commands
+                batch.setLength(0);
+                for (int i = 0; i < pipelineDepth; i++) {
+                    int userID = userID(clientID, nextSlot + i / 4);
+                    switch (i % 4) {
+                        case 0: batch.append("Reserve(").append(userID).append(", ").append(1 + userID % 5).append(")\n"); break;
+                        case 1: batch.append("UpdatePriority(").append(userID).append(", ").append(1 + userID % 7).append(")\n"); break;
+                        case 2: batch.append("ExitWaitlist(").append(userID).append(")\n"); break;
+                        default: batch.append("Available()\n"); break;
+                    }
+                }
+                nextSlot += (pipelineDepth + 3) / 4;
+
+                long sent = System.nanoTime();
+                writer.write(batch.toString());
+                writer.flush();
+
+                // Every response ends with an empty line
+                for (int i = 0; i < pipelineDepth; i++) {
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        // Skip the output lines of the command
+                    }
+                    if (line == null) {
+                        throw new EOFException("Server closed the connection");
+                    }
+
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - sent;
+                }
+                completed.addAndGet(pipelineDepth);
+            }
+
+            writer.write("Quit()\n");
+            writer.flush();
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    /**
+     * Main method for running the load generator from the command line.
+     * @param args port, number of clients, duration in seconds and pipeline depth
+     * @throws Exception if the run is interrupted or the seats cannot be initialized
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("Usage: java LoadGenerator <port> <clients> <seconds> <pipeline_depth>");
+            return;
+        }
+
+        int port            = Integer.parseInt(args[0]);
+        int clients         = Integer.parseInt(args[1]);
+        int seconds         = Integer.parseInt(args[2]);
+        int pipelineDepth   = Integer.parseInt(args[3]);
+
+        // Make a fixed number of seats available so some reservations succeed and the rest are waitlisted
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream());
+            writer.write("Initialize(1000)\nQuit()\n");
+            writer.flush();
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).lines().count();
+        }
+
+        long start                  = System.nanoTime();
+        LoadGenerator generator     = new LoadGenerator(port, clients, pipelineDepth, start + TimeUnit.SECONDS.toNanos(seconds));
+        ExecutorService threads     = TicketServer.newVirtualThreadExecutor();
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int clientID = i + 1;
+            results.add(threads.submit(() -> generator.runClient(clientID)));
+        }
+
+        // Merge the latencies of all clients
+        long[] all  = new long[0];
+        int failed  = 0;
+        for (Future<long[]> result : results) {
+            try {
+                long[] latencies    = result.get();
+                int offset          = all.length;
+                all                 = Arrays.copyOf(all, offset + latencies.length);
+                System.arraycopy(latencies, 0, all, offset, latencies.length);
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        threads.shutdown();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(all);
+        System.out.printf("Clients : %d (%d failed), Pipeline depth : %d%n", clients, failed, pipelineDepth);
+        System.out.printf("Requests : %d in %.2f s, %.0f requests/sec%n", generator.completed.get(), elapsed, generator.completed.get() / elapsed);
+        if (all.length > 0) {
+            System.out.printf("Latency p50 : %.3f ms, p99 : %.3f ms, max : %.3f ms%n",
+                    percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6, all[all.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Returns the given percentile of a sorted array of samples.
+     * @param sorted the samples in ascending order
+     * @param fraction the percentile as a fraction between 0 and 1
+     * @return the sample at that percentile
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,250 @@
+// Root record of an engine whose state lives in a MappedStateFile
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Everything GatorTicketMaster keeps in its state file, reached from one root record:
+ *
+ *   0  store           int     region of the MappedReservationStore
+ *   4  index           int     region of the MappedIntLongHashMap of waiting users
+ *   8  sections        int     offset, capacity and count of the section table
+ *   20 ranges          int     offset, capacity and count of the seat range table
+ *   32 last seat       int     the last seat ever added
+ *   40 clock           long    the engine's logical clock at the last commit
+ *   48 arrivals        long    the engine's arrival counter at the last commit
+ *
+ * A section record holds the offset and length of its UTF-8 name and the offsets of the descriptors of its
+ * free-seat heap and waitlist, which are allocated on their own so they stay put when the table moves.
+ * A range record holds the first seat of a run of seats and the position of the section that owns it; adjacent
+ * ranges of one section are merged, as in SeatRangeMap. A full table moves to a new allocation twice the size.
+ */
+public class MappedEngineState {
+    // Root record layout
+    private static final int STORE              = 0;
+    private static final int INDEX              = 4;
+    private static final int SECTIONS           = 8;
+    private static final int SECTION_CAPACITY   = 12;
+    private static final int SECTION_COUNT      = 16;
+    private static final int RANGES             = 20;
+    private static final int RANGE_CAPACITY     = 24;
+    private static final int RANGE_COUNT        = 28;
+    private static final int LAST_SEAT          = 32;
+    private static final int CLOCK              = 40;
+    private static final int ARRIVALS           = 48;
+    private static final int ROOT_SIZE          = 56;
+
+    // Section record layout
+    private static final int NAME               = 0;
+    private static final int NAME_LENGTH        = 4;
+    private static final int SEATS              = 8;
+    private static final int WAITLIST           = 12;
+    private static final int SECTION_SIZE       = 16;
+
+    // Range record layout
+    private static final int FIRST_SEAT         = 0;
+    private static final int OWNER              = 4;
+    private static final int RANGE_SIZE         = 8;
+
+    private static final int MIN_CAPACITY       = 8;
+
+    private final MappedStateFile file;
+    private final int root;
+    private final MappedReservationStore store;
+    private final MappedIntLongHashMap waiting;
+
+    private MappedEngineState(MappedStateFile file) {
+        this.file       = file;
+        this.root       = file.root();
+        this.store      = new MappedReservationStore(file, file.getInt(root + STORE));
+        this.waiting    = new MappedIntLongHashMap(file, file.getInt(root + INDEX));
+    }
+
+    /**
+     * Returns the state kept in the given file, laying out an empty one first if the file is new.
+     * @param file the mapped state file
+     * @return the engine state
+     * @throws java.io.UncheckedIOException if a new file cannot grow to hold the empty state
+     */
+    public static MappedEngineState open(MappedStateFile file) {
+        if (file.root() == 0) {
+            int root = file.allocate(ROOT_SIZE);
+            file.putInt(root + STORE, MappedReservationStore.create(file).region());
+            file.putInt(root + INDEX, MappedIntLongHashMap.create(file, 0).region());
+            file.setRoot(root);
+        }
+        return new MappedEngineState(file);
+    }
+
+    public MappedStateFile file() {
+        return file;
+    }
+
+    public MappedReservationStore store() {
+        return store;
+    }
+
+    /**
+     * Returns the index of waiting users, from userID to (section position << 32 | heap position)
+     * @return the index shared by the waitlists of all sections
+     */
+    public MappedIntLongHashMap waitingIndex() {
+        return waiting;
+    }
+
+    public int sectionCount() {
+        return file.getInt(root + SECTION_COUNT);
+    }
+
+    private int sectionRecord(int section) {
+        return file.getInt(root + SECTIONS) + section * SECTION_SIZE;
+    }
+
+    /**
+     * Returns the name of a section
+     * @param section the position of the section, from 0 to sectionCount() - 1
+     * @return the name of the section
+     */
+    public String sectionName(int section) {
+        int record = sectionRecord(section);
+        return new String(file.getBytes(file.getInt(record + NAME), file.getInt(record + NAME_LENGTH)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens the free seats of a section
+     * @param section the position of the section
+     * @return the section's seat pool
+     */
+    public MappedSeatPool seatPool(int section) {
+        return new MappedSeatPool(file, file.getInt(sectionRecord(section) + SEATS));
+    }
+
+    /**
+     * Opens the waitlist of a section
+     * @param section the position of the section
+     * @return the section's waitlist
+     */
+    public MappedWaitlist waitlist(int section) {
+        return new MappedWaitlist(file, file.getInt(sectionRecord(section) + WAITLIST), section, waiting);
+    }
+
+    /**
+     * Adds an empty section after the existing ones
+     * @param name the name of the section
+     * @return the position of the new section
+     * @throws java.io.UncheckedIOException if the file cannot grow
+     */
+    public int addSection(String name) {
+        int section = sectionCount();
+        makeRoom(SECTIONS, SECTION_CAPACITY, section, SECTION_SIZE);
+
+        byte[] bytes    = name.getBytes(StandardCharsets.UTF_8);
+        int nameOffset  = file.allocate(bytes.length);
+        file.putBytes(nameOffset, bytes);
+        int seats       = file.allocate(MappedHeap.DESCRIPTOR_SIZE);
+        int waitlist    = file.allocate(MappedHeap.DESCRIPTOR_SIZE);
+
+        int record = sectionRecord(section);
+        file.putInt(record + NAME, nameOffset);
+        file.putInt(record + NAME_LENGTH, bytes.length);
+        file.putInt(record + SEATS, seats);
+        file.putInt(record + WAITLIST, waitlist);
+        file.putInt(root + SECTION_COUNT, section + 1);
+        return section;
+    }
+
+    /**
+     * Moves a table to a new allocation twice the size if it has no room for another record.
+     * @param table the root field holding the table's offset
+     * @param capacity the root field holding its capacity
+     * @param count the number of records in the table
+     * @param recordSize the size of a record
+     */
+    private void makeRoom(int table, int capacity, int count, int recordSize) {
+        int oldCapacity = file.getInt(root + capacity);
+        if (count < oldCapacity) {
+            return;
+        }
+        int newCapacity = Math.max(MIN_CAPACITY, oldCapacity * 2);
+        int records     = file.allocate(newCapacity * recordSize);
+        file.copy(file.getInt(root + table), records, count * recordSize);
+        file.putInt(root + table, records);
+        file.putInt(root + capacity, newCapacity);
+    }
+
+    /**
+     * Assigns the seats in [firstSeat, lastSeat] to a section.
+     * @param firstSeat the first seat of the range, right after the last seat added so far
+     * @param lastSeat the last seat of the range
+     * @param section the position of the owning section
+     * @throws java.io.UncheckedIOException if the file cannot grow
+     */
+    public void appendRange(int firstSeat, int lastSeat, int section) {
+        int count = rangeCount();
+        // Extend the last range instead of starting a new one when the section and the seats continue it
+        if (count == 0 || rangeSection(count - 1) != section || firstSeat != lastSeat() + 1) {
+            makeRoom(RANGES, RANGE_CAPACITY, count, RANGE_SIZE);
+            int record = file.getInt(root + RANGES) + count * RANGE_SIZE;
+            file.putInt(record + FIRST_SEAT, firstSeat);
+            file.putInt(record + OWNER, section);
+            file.putInt(root + RANGE_COUNT, count + 1);
+        }
+        file.putInt(root + LAST_SEAT, lastSeat);
+    }
+
+    public int rangeCount() {
+        return file.getInt(root + RANGE_COUNT);
+    }
+
+    /**
+     * Returns the first seat of a range
+     * @param range the position of the range, from 0 to rangeCount() - 1
+     * @return the first seat of the range
+     */
+    public int rangeStart(int range) {
+        return file.getInt(file.getInt(root + RANGES) + range * RANGE_SIZE + FIRST_SEAT);
+    }
+
+    /**
+     * Returns the last seat of a range
+     * @param range the position of the range, from 0 to rangeCount() - 1
+     * @return the last seat of the range
+     */
+    public int rangeEnd(int range) {
+        return range + 1 < rangeCount() ? rangeStart(range + 1) - 1 : lastSeat();
+    }
+
+    /**
+     * Returns the section that owns a range
+     * @param range the position of the range, from 0 to rangeCount() - 1
+     * @return the position of the owning section
+     */
+    public int rangeSection(int range) {
+        return file.getInt(file.getInt(root + RANGES) + range * RANGE_SIZE + OWNER);
+    }
+
+    /**
+     * Returns the last seat ever added
+     * @return the last seat, or 0 if there are no seats
+     */
+    public int lastSeat() {
+        return file.getInt(root + LAST_SEAT);
+    }
+
+    public long clock() {
+        return file.getLong(root + CLOCK);
+    }
+
+    public long arrivals() {
+        return file.getLong(root + ARRIVALS);
+    }
+
+    /**
+     * Records the engine's counters, which it keeps in fields while it runs, ahead of a commit
+     * @param clock the logical clock
+     * @param arrivals the arrival counter
+     */
+    public void saveCounters(long clock, long arrivals) {
+        file.putLong(root + CLOCK, clock);
+        file.putLong(root + ARRIVALS, arrivals);
+    }
+}
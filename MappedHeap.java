@@ -0,0 +1,195 @@
+// Binary min-heap of fixed-size elements kept in a MappedStateFile
+
+/**
+ * The sifting shared by MappedSeatPool and MappedWaitlist: a binary min-heap laid out as an array of fixed-size
+ * elements in a MappedStateFile, so it is in place again as soon as the file is mapped. The heap is reached
+ * through a 12-byte descriptor holding the offset of the array, its capacity in elements and the heap's size.
+ * The descriptor never moves, while the array moves to a new allocation twice the size when it is full.
+ * Subclasses order the elements and may track where each one lands.
+ */
+abstract class MappedHeap {
+    static final int DESCRIPTOR_SIZE = 12;
+
+    // Descriptor layout
+    private static final int ELEMENTS       = 0;
+    private static final int CAPACITY       = 4;
+    private static final int SIZE           = 8;
+
+    private static final int MIN_CAPACITY   = 16;
+
+    final MappedStateFile file;
+    private final int descriptor;
+    private final int elementSize;
+    // Swaps made while sifting by this process; a diagnostic, so it is not kept in the file
+    private long siftSteps;
+
+    /**
+     * Opens the heap whose descriptor is at the given offset; an all-zero descriptor is an empty heap.
+     * @param file the file holding the heap
+     * @param descriptor the offset of the heap's descriptor
+     * @param elementSize the size of an element in bytes, a multiple of 4
+     */
+    MappedHeap(MappedStateFile file, int descriptor, int elementSize) {
+        this.file           = file;
+        this.descriptor     = descriptor;
+        this.elementSize    = elementSize;
+    }
+
+    /**
+     * Compares the elements at two positions
+     * @param a the position of the first element
+     * @param b the position of the second element
+     * @return a negative integer, zero, or a positive integer as the first element is served before, with or after the second
+     */
+    abstract int compare(int a, int b);
+
+    /**
+     * Called after an element has been written at a position, so a subclass can index it.
+     * @param position the position of the element
+     */
+    void moved(int position) {
+    }
+
+    /**
+     * Returns the offset of the element at a position
+     * @param position the position in the heap
+     * @return the offset of the element in the file
+     */
+    final int offsetOf(int position) {
+        return file.getInt(descriptor + ELEMENTS) + position * elementSize;
+    }
+
+    public int size() {
+        return file.getInt(descriptor + SIZE);
+    }
+
+    public long siftSteps() {
+        return siftSteps;
+    }
+
+    /**
+     * Makes room for one more element at the bottom of the heap, moving the array if it is full.
+     * The caller writes the element at the returned position and then calls siftUp.
+     * @return the position of the new element
+     * @throws java.io.UncheckedIOException if the file cannot grow, in which case the heap is unchanged
+     */
+    final int append() {
+        int size        = size();
+        int capacity    = file.getInt(descriptor + CAPACITY);
+        if (size == capacity) {
+            int newCapacity = Math.max(MIN_CAPACITY, capacity * 2);
+            int elements    = file.allocate(newCapacity * elementSize);
+            file.copy(offsetOf(0), elements, size * elementSize);
+            file.putInt(descriptor + ELEMENTS, elements);
+            file.putInt(descriptor + CAPACITY, newCapacity);
+        }
+        file.putInt(descriptor + SIZE, size + 1);
+        return size;
+    }
+
+    /**
+     * Removes the element at a position, filling the hole with the last element and sifting it into place.
+     * @param position the position of the element to remove
+     */
+    final void removeAt(int position) {
+        int last = size() - 1;
+        file.putInt(descriptor + SIZE, last);
+        if (position == last) {
+            return;
+        }
+
+        copyElement(last, position);
+        moved(position);
+        if (position > 0 && compare(position, (position - 1) / 2) < 0) {
+            siftUp(position);
+        } else {
+            siftDown(position);
+        }
+    }
+
+    /**
+     * Moves the element at a position up while it is served before its parent.
+     * @param position the position of the element
+     */
+    final void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (compare(position, parent) >= 0) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    /**
+     * Moves the element at a position down while one of its children is served before it.
+     * @param position the position of the element
+     */
+    final void siftDown(int position) {
+        int size = size();
+        while (true) {
+            int smallest    = position;
+            int left        = 2 * position + 1;
+            int right       = 2 * position + 2;
+            if (left < size && compare(left, smallest) < 0) {
+                smallest = left;
+            }
+            if (right < size && compare(right, smallest) < 0) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                break;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        siftSteps++;
+        int a = offsetOf(i);
+        int b = offsetOf(j);
+        if (elementSize % 8 == 0) {
+            for (int k = 0; k < elementSize; k += 8) {
+                long value = file.getLong(a + k);
+                file.putLong(a + k, file.getLong(b + k));
+                file.putLong(b + k, value);
+            }
+        } else {
+            for (int k = 0; k < elementSize; k += 4) {
+                int value = file.getInt(a + k);
+                file.putInt(a + k, file.getInt(b + k));
+                file.putInt(b + k, value);
+            }
+        }
+        moved(i);
+        moved(j);
+    }
+
+    private void copyElement(int from, int to) {
+        int a = offsetOf(from);
+        int b = offsetOf(to);
+        if (elementSize % 8 == 0) {
+            for (int k = 0; k < elementSize; k += 8) {
+                file.putLong(b + k, file.getLong(a + k));
+            }
+        } else {
+            for (int k = 0; k < elementSize; k += 4) {
+                file.putInt(b + k, file.getInt(a + k));
+            }
+        }
+    }
+
+    /**
+     * Verifies that no element is served before its parent.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void checkInvariants() {
+        for (int i = 1; i < size(); i++) {
+            if (compare((i - 1) / 2, i) > 0) {
+                throw new IllegalStateException("Heap order violated at index " + i);
+            }
+        }
+    }
+}
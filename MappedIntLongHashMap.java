@@ -0,0 +1,186 @@
+// Open-addressing hash map from int keys to long values, kept in a memory-mapped file
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A map from int keys to non-negative long values whose table lives in a MappedStateFile instead of the Java heap.
+ * In a state file it is in place again as soon as the file is mapped; in a scratch file, a map of tens of millions
+ * of keys costs page cache the operating system can write back rather than heap. It probes like IntHashTable.
+ * A slot is 12 bytes, the key followed by the value plus one, so an all-zero slot is free and a new table needs
+ * no initialization. The map's region holds the offset, capacity and size of its table; when half the slots are
+ * used the table is rehashed into a new allocation twice the size.
+ */
+public class MappedIntLongHashMap {
+    // Region layout
+    private static final int TABLE          = 0;
+    private static final int CAPACITY       = 4;
+    private static final int SIZE           = 8;
+    private static final int REGION_SIZE    = 12;
+
+    private static final int SLOT_SIZE      = 4 + 8;
+    private static final int MIN_CAPACITY   = 64;
+
+    private final MappedStateFile file;
+    private final int region;
+
+    /**
+     * Opens the map whose region is at the given offset
+     * @param file the file holding the map
+     * @param region the offset of the map's region
+     */
+    public MappedIntLongHashMap(MappedStateFile file, int region) {
+        this.file   = file;
+        this.region = region;
+    }
+
+    /**
+     * Allocates an empty map in the given file
+     * @param file the file to hold the map
+     * @param expectedSize the number of keys to make room for
+     * @return the new map
+     */
+    public static MappedIntLongHashMap create(MappedStateFile file, int expectedSize) {
+        MappedIntLongHashMap map = new MappedIntLongHashMap(file, file.allocate(REGION_SIZE));
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        file.putInt(map.region + TABLE, file.allocate(capacity * SLOT_SIZE));
+        file.putInt(map.region + CAPACITY, capacity);
+        return map;
+    }
+
+    /**
+     * Returns the offset of the map's region, by which it is found again when the file is reopened
+     * @return the region offset
+     */
+    public int region() {
+        return region;
+    }
+
+    private boolean isUsed(int slot) {
+        return file.getLong(slot + 4) != 0;
+    }
+
+    /**
+     * Returns the slot holding the given key, or the free slot where it would be inserted.
+     * @param table the offset of the table
+     * @param capacity the number of slots in the table
+     * @param key the key to find
+     * @return the offset of the slot
+     */
+    private int find(int table, int capacity, int key) {
+        int mask    = capacity - 1;
+        int index   = IntHashTable.home(key, mask);
+        while (isUsed(table + index * SLOT_SIZE) && file.getInt(table + index * SLOT_SIZE) != key) {
+            index = (index + 1) & mask;
+        }
+        return table + index * SLOT_SIZE;
+    }
+
+    private int find(int key) {
+        return find(file.getInt(region + TABLE), file.getInt(region + CAPACITY), key);
+    }
+
+    /**
+     * Returns the value mapped to the given key.
+     * @param key the key to look up
+     * @param defaultValue the value to return if the key is absent
+     * @return the mapped value, or defaultValue if there is none
+     */
+    public long get(int key, long defaultValue) {
+        int slot = find(key);
+        return isUsed(slot) ? file.getLong(slot + 4) - 1 : defaultValue;
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any previous value. Replacing never grows the table.
+     * @param key the key
+     * @param value the value, at least 0
+     * @throws UncheckedIOException if the key is new and the table cannot grow, in which case nothing changes
+     */
+    public void put(int key, long value) {
+        int slot = find(key);
+        if (!isUsed(slot)) {
+            ensureCapacity(size() + 1);
+            slot = find(key);
+            file.putInt(slot, key);
+            file.putInt(region + SIZE, size() + 1);
+        }
+        file.putLong(slot + 4, value + 1);
+    }
+
+    /**
+     * Removes the mapping of the given key, moving back following entries of its probe run as IntHashTable does.
+     * @param key the key to remove
+     * @return true if the key was mapped, otherwise false
+     */
+    public boolean remove(int key) {
+        int table   = file.getInt(region + TABLE);
+        int mask    = file.getInt(region + CAPACITY) - 1;
+        int slot    = find(table, mask + 1, key);
+        if (!isUsed(slot)) {
+            return false;
+        }
+
+        int free = (slot - table) / SLOT_SIZE;
+        int next = (free + 1) & mask;
+        while (isUsed(table + next * SLOT_SIZE)) {
+            int nextKey = file.getInt(table + next * SLOT_SIZE);
+            if (IntHashTable.canMoveBack(IntHashTable.home(nextKey, mask), free, next, mask)) {
+                file.putInt(table + free * SLOT_SIZE, nextKey);
+                file.putLong(table + free * SLOT_SIZE + 4, file.getLong(table + next * SLOT_SIZE + 4));
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        file.putInt(table + free * SLOT_SIZE, 0);
+        file.putLong(table + free * SLOT_SIZE + 4, 0);
+        file.putInt(region + SIZE, size() - 1);
+        return true;
+    }
+
+    /**
+     * Grows the table ahead of time so that the given number of keys fit without another resize,
+     * letting a caller fail before it changes anything else.
+     * @param expectedSize the number of keys the table must hold
+     * @throws UncheckedIOException if the file cannot grow, in which case nothing changes
+     */
+    public void ensureCapacity(int expectedSize) {
+        int oldCapacity = file.getInt(region + CAPACITY);
+        if ((long) expectedSize * 2 <= oldCapacity) {
+            return;
+        }
+        long capacity = oldCapacity;
+        while (capacity < (long) expectedSize * 2) {
+            capacity <<= 1;
+        }
+        if (capacity * SLOT_SIZE > Integer.MAX_VALUE) {
+            throw new UncheckedIOException(new IOException("The map cannot hold " + expectedSize + " keys"));
+        }
+
+        // The new table is fresh space, so filling it needs no undo records
+        int oldTable    = file.getInt(region + TABLE);
+        int table       = file.allocate((int) capacity * SLOT_SIZE);
+        for (int i = 0; i < oldCapacity; i++) {
+            int slot = oldTable + i * SLOT_SIZE;
+            if (isUsed(slot)) {
+                int key     = file.getInt(slot);
+                int target  = find(table, (int) capacity, key);
+                file.putInt(target, key);
+                file.putLong(target + 4, file.getLong(slot + 4));
+            }
+        }
+        file.putInt(region + TABLE, table);
+        file.putInt(region + CAPACITY, (int) capacity);
+    }
+
+    /**
+     * Returns the number of mappings in the map.
+     * @return the size of the map
+     */
+    public int size() {
+        return file.getInt(region + SIZE);
+    }
+}
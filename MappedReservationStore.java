@@ -0,0 +1,537 @@
+// Red-black tree whose nodes live in a memory-mapped arena
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The RedBlackTree algorithm over an arena of fixed-layout node records in a MappedStateFile, so the
+ * reservations are already in place when a restarted process maps the file. A node is six ints:
+ *
+ *   userID, seatID, left, right, parent, color
+ *
+ * Links are node indices, with NIL for none. The store's region holds the root, the size, the number of nodes
+ * ever allocated, the head of the free list and the offset and capacity of the arena; deleted nodes are chained
+ * through their left link and reused. Every change is written through the file's logged accessors, and a full
+ * arena moves to a new allocation twice the size.
+ */
+public class MappedReservationStore implements ReservationStore {
+    private static final int NIL    = -1;
+    private static final int RED    = 1;
+    private static final int BLACK  = 0;
+
+    // Region layout
+    private static final int ROOT           = 0;
+    private static final int SIZE           = 4;
+    private static final int ALLOCATED      = 8;
+    private static final int FREE           = 12;
+    private static final int NODES          = 16;
+    private static final int CAPACITY       = 20;
+    private static final int REGION_SIZE    = 24;
+
+    private static final int MIN_CAPACITY   = 1024;
+
+    // Node record layout
+    private static final int USER       = 0;
+    private static final int SEAT       = 4;
+    private static final int LEFT       = 8;
+    private static final int RIGHT      = 12;
+    private static final int PARENT     = 16;
+    private static final int COLOR      = 20;
+    private static final int NODE_SIZE  = 24;
+
+    private final MappedStateFile file;
+    private final int region;
+    // Rotations performed by this process; a diagnostic, so it is not kept in the file
+    private long rotations;
+
+    /**
+     * Opens the store whose region is at the given offset
+     * @param file the mapped state file
+     * @param region the offset of the store's region
+     */
+    public MappedReservationStore(MappedStateFile file, int region) {
+        this.file   = file;
+        this.region = region;
+    }
+
+    /**
+     * Allocates an empty store in the given file
+     * @param file the mapped state file
+     * @return the new store
+     */
+    public static MappedReservationStore create(MappedStateFile file) {
+        MappedReservationStore store = new MappedReservationStore(file, file.allocate(REGION_SIZE));
+        file.putInt(store.region + ROOT, NIL);
+        file.putInt(store.region + FREE, NIL);
+        return store;
+    }
+
+    /**
+     * Returns the offset of the store's region, by which it is found again when the file is reopened
+     * @return the region offset
+     */
+    public int region() {
+        return region;
+    }
+
+    private int offsetOf(int node, int field) {
+        return file.getInt(region + NODES) + node * NODE_SIZE + field;
+    }
+
+    private int get(int node, int field) {
+        return file.getInt(offsetOf(node, field));
+    }
+
+    private void set(int node, int field, int value) {
+        file.putInt(offsetOf(node, field), value);
+    }
+
+    private int root() {
+        return file.getInt(region + ROOT);
+    }
+
+    private void setRoot(int node) {
+        file.putInt(region + ROOT, node);
+    }
+
+    private int left(int node) {
+        return get(node, LEFT);
+    }
+
+    private int right(int node) {
+        return get(node, RIGHT);
+    }
+
+    private int parent(int node) {
+        return get(node, PARENT);
+    }
+
+    // A NIL leaf counts as black
+    private int color(int node) {
+        return node == NIL ? BLACK : get(node, COLOR);
+    }
+
+    /**
+     * Takes a node from the free list, or a new one from the end of the arena, moving the arena if it is full.
+     * @return the index of the node
+     * @throws UncheckedIOException if the file cannot grow, in which case the store is unchanged
+     */
+    private int allocate() {
+        int node = file.getInt(region + FREE);
+        if (node != NIL) {
+            file.putInt(region + FREE, left(node));
+            return node;
+        }
+
+        node            = file.getInt(region + ALLOCATED);
+        int capacity    = file.getInt(region + CAPACITY);
+        if (node == capacity) {
+            long newCapacity = Math.max(MIN_CAPACITY, capacity * 2L);
+            if (newCapacity * NODE_SIZE > Integer.MAX_VALUE) {
+                throw new UncheckedIOException(new IOException("The store cannot hold " + newCapacity + " reservations"));
+            }
+            int nodes = file.allocate((int) newCapacity * NODE_SIZE);
+            file.copy(file.getInt(region + NODES), nodes, node * NODE_SIZE);
+            file.putInt(region + NODES, nodes);
+            file.putInt(region + CAPACITY, (int) newCapacity);
+        }
+        file.putInt(region + ALLOCATED, node + 1);
+        return node;
+    }
+
+    /**
+     * Returns a removed node to the free list
+     * @param node the index of the node
+     */
+    private void free(int node) {
+        set(node, LEFT, file.getInt(region + FREE));
+        file.putInt(region + FREE, node);
+    }
+
+    private void checkWritable() {
+        if (file.isClosed()) {
+            throw new IllegalStateException("The state file has been committed and closed");
+        }
+    }
+
+    /**
+     * Rotate the node to the left.
+     * @param node the node to rotate
+     */
+    private void rotateLeft(int node) {
+        rotations++;
+        int rightChild = right(node);
+        set(node, RIGHT, left(rightChild));
+        if (left(rightChild) != NIL) {
+            set(left(rightChild), PARENT, node);
+        }
+
+        set(rightChild, PARENT, parent(node));
+        if (parent(node) == NIL) {
+            setRoot(rightChild);
+        } else if (node == left(parent(node))) {
+            set(parent(node), LEFT, rightChild);
+        } else {
+            set(parent(node), RIGHT, rightChild);
+        }
+
+        set(rightChild, LEFT, node);
+        set(node, PARENT, rightChild);
+    }
+
+    /**
+     * Rotate the node to the right.
+     * @param node the node to rotate
+     */
+    private void rotateRight(int node) {
+        rotations++;
+        int leftChild = left(node);
+        set(node, LEFT, right(leftChild));
+        if (right(leftChild) != NIL) {
+            set(right(leftChild), PARENT, node);
+        }
+
+        set(leftChild, PARENT, parent(node));
+        if (parent(node) == NIL) {
+            setRoot(leftChild);
+        } else if (node == right(parent(node))) {
+            set(parent(node), RIGHT, leftChild);
+        } else {
+            set(parent(node), LEFT, leftChild);
+        }
+
+        set(leftChild, RIGHT, node);
+        set(node, PARENT, leftChild);
+    }
+
+    @Override
+    public void insert(int userID, int seatID) {
+        checkWritable();
+        int node = allocate();
+        set(node, USER, userID);
+        set(node, SEAT, seatID);
+        set(node, LEFT, NIL);
+        set(node, RIGHT, NIL);
+        set(node, COLOR, RED);
+
+        // Walk down to the leaf position of the new node
+        int parent  = NIL;
+        int current = root();
+        while (current != NIL) {
+            parent  = current;
+            current = userID < get(current, USER) ? left(current) : right(current);
+        }
+
+        set(node, PARENT, parent);
+        if (parent == NIL) {
+            setRoot(node);
+        } else if (userID < get(parent, USER)) {
+            set(parent, LEFT, node);
+        } else {
+            set(parent, RIGHT, node);
+        }
+
+        rebalanceTreeAfterInsert(node);
+        file.putInt(region + SIZE, size() + 1);
+    }
+
+    /**
+     * Restores the red-black properties after an insert, as in RedBlackTree.
+     * @param node the inserted node
+     */
+    private void rebalanceTreeAfterInsert(int node) {
+        while (node != root() && color(parent(node)) == RED) {
+            int parent      = parent(node);
+            int grandparent = parent(parent);
+            if (parent == left(grandparent)) {
+                int siblingOfParent = right(grandparent);
+                if (color(siblingOfParent) == RED) {
+                    set(parent, COLOR, BLACK);
+                    set(siblingOfParent, COLOR, BLACK);
+                    set(grandparent, COLOR, RED);
+                    node = grandparent;
+                } else {
+                    if (node == right(parent)) {
+                        node = parent;
+                        rotateLeft(node);
+                    }
+                    set(parent(node), COLOR, BLACK);
+                    set(parent(parent(node)), COLOR, RED);
+                    rotateRight(parent(parent(node)));
+                }
+            } else {
+                int siblingOfParent = left(grandparent);
+                if (color(siblingOfParent) == RED) {
+                    set(parent, COLOR, BLACK);
+                    set(siblingOfParent, COLOR, BLACK);
+                    set(grandparent, COLOR, RED);
+                    node = grandparent;
+                } else {
+                    if (node == left(parent)) {
+                        node = parent;
+                        rotateRight(node);
+                    }
+                    set(parent(node), COLOR, BLACK);
+                    set(parent(parent(node)), COLOR, RED);
+                    rotateLeft(parent(parent(node)));
+                }
+            }
+        }
+        set(root(), COLOR, BLACK);
+    }
+
+    /**
+     * Finds the node of the given user
+     * @param userID the user ID to search for
+     * @return the node index, or NIL if the user has no reservation
+     */
+    private int findNode(int userID) {
+        int current = root();
+        while (current != NIL) {
+            int key = get(current, USER);
+            if (userID == key) {
+                return current;
+            }
+            current = userID < key ? left(current) : right(current);
+        }
+        return NIL;
+    }
+
+    @Override
+    public int findSeat(int userID) {
+        int node = findNode(userID);
+        return node == NIL ? NO_SEAT : get(node, SEAT);
+    }
+
+    @Override
+    public void delete(int userID) {
+        checkWritable();
+        int node = findNode(userID);
+        if (node != NIL) {
+            deleteNode(node);
+        }
+    }
+
+    @Override
+    public Object locate(int userID) {
+        int node = findNode(userID);
+        return node == NIL ? null : node;
+    }
+
+    @Override
+    public int seatAt(Object handle) {
+        return get((Integer) handle, SEAT);
+    }
+
+    @Override
+    public void deleteAt(Object handle) {
+        checkWritable();
+        deleteNode((Integer) handle);
+    }
+
+    /**
+     * Removes the given node from the tree, rebalances it and frees the node that was unlinked.
+     * @param node the node to remove
+     */
+    private void deleteNode(int node) {
+        file.putInt(region + SIZE, size() - 1);
+
+        // Remove the node itself if it has at most one child, otherwise its in-order successor
+        int nodeToRemove = node;
+        if (left(node) != NIL && right(node) != NIL) {
+            nodeToRemove = right(node);
+            while (left(nodeToRemove) != NIL) {
+                nodeToRemove = left(nodeToRemove);
+            }
+        }
+
+        int replacementChild    = left(nodeToRemove) != NIL ? left(nodeToRemove) : right(nodeToRemove);
+        int parent              = parent(nodeToRemove);
+        if (replacementChild != NIL) {
+            set(replacementChild, PARENT, parent);
+        }
+        if (parent == NIL) {
+            setRoot(replacementChild);
+        } else if (nodeToRemove == left(parent)) {
+            set(parent, LEFT, replacementChild);
+        } else {
+            set(parent, RIGHT, replacementChild);
+        }
+
+        // The successor's reservation moves into the surviving node
+        if (nodeToRemove != node) {
+            set(node, USER, get(nodeToRemove, USER));
+            set(node, SEAT, get(nodeToRemove, SEAT));
+        }
+
+        if (get(nodeToRemove, COLOR) == BLACK) {
+            rebalanceTreeAfterDelete(replacementChild, parent);
+        }
+        free(nodeToRemove);
+    }
+
+    /**
+     * Restores the red-black properties after a black node was removed, as in RedBlackTree.
+     * @param node the child that replaced the removed node, possibly NIL
+     * @param parent the parent of that child
+     */
+    private void rebalanceTreeAfterDelete(int node, int parent) {
+        while (node != root() && color(node) == BLACK) {
+            if (node == left(parent)) {
+                int siblingNode = right(parent);
+                if (color(siblingNode) == RED) {
+                    set(siblingNode, COLOR, BLACK);
+                    set(parent, COLOR, RED);
+                    rotateLeft(parent);
+                    siblingNode = right(parent);
+                }
+
+                if (color(left(siblingNode)) == BLACK && color(right(siblingNode)) == BLACK) {
+                    set(siblingNode, COLOR, RED);
+                    node    = parent;
+                    parent  = parent(node);
+                } else {
+                    if (color(right(siblingNode)) == BLACK) {
+                        set(left(siblingNode), COLOR, BLACK);
+                        set(siblingNode, COLOR, RED);
+                        rotateRight(siblingNode);
+                        siblingNode = right(parent);
+                    }
+                    set(siblingNode, COLOR, get(parent, COLOR));
+                    set(parent, COLOR, BLACK);
+                    if (right(siblingNode) != NIL) {
+                        set(right(siblingNode), COLOR, BLACK);
+                    }
+                    rotateLeft(parent);
+                    node = root();
+                }
+            } else {
+                int siblingNode = left(parent);
+                if (color(siblingNode) == RED) {
+                    set(siblingNode, COLOR, BLACK);
+                    set(parent, COLOR, RED);
+                    rotateRight(parent);
+                    siblingNode = left(parent);
+                }
+
+                if (color(right(siblingNode)) == BLACK && color(left(siblingNode)) == BLACK) {
+                    set(siblingNode, COLOR, RED);
+                    node    = parent;
+                    parent  = parent(node);
+                } else {
+                    if (color(left(siblingNode)) == BLACK) {
+                        set(right(siblingNode), COLOR, BLACK);
+                        set(siblingNode, COLOR, RED);
+                        rotateLeft(siblingNode);
+                        siblingNode = left(parent);
+                    }
+                    set(siblingNode, COLOR, get(parent, COLOR));
+                    set(parent, COLOR, BLACK);
+                    if (left(siblingNode) != NIL) {
+                        set(left(siblingNode), COLOR, BLACK);
+                    }
+                    rotateRight(parent);
+                    node = root();
+                }
+            }
+        }
+        if (node != NIL) {
+            set(node, COLOR, BLACK);
+        }
+    }
+
+    @Override
+    public int size() {
+        return file.getInt(region + SIZE);
+    }
+
+    @Override
+    public long rebalanceSteps() {
+        return rotations;
+    }
+
+    @Override
+    public void forEachInRange(int fromUserID, int toUserID, Visitor visitor) {
+        forEachInRange(root(), fromUserID, toUserID, visitor);
+    }
+
+    /**
+     * Visits the nodes of the given subtree whose user IDs lie in [fromUserID, toUserID], in order.
+     * @param node the root of the subtree
+     * @param fromUserID the start of the user range
+     * @param toUserID the end of the user range
+     * @param visitor the visitor to call for each node in range
+     */
+    private void forEachInRange(int node, int fromUserID, int toUserID, Visitor visitor) {
+        while (node != NIL) {
+            int userID = get(node, USER);
+            if (fromUserID < userID) {
+                forEachInRange(left(node), fromUserID, toUserID, visitor);
+            }
+            if (userID >= fromUserID && userID <= toUserID) {
+                visitor.visit(userID, get(node, SEAT));
+            }
+            if (userID > toUserID) {
+                return;
+            }
+            node = right(node);
+        }
+    }
+
+    @Override
+    public void checkInvariants() {
+        int root = root();
+        if (root != NIL && (color(root) != BLACK || parent(root) != NIL)) {
+            throw new IllegalStateException("Root must be black and have no parent");
+        }
+
+        int[] count = new int[1];
+        checkSubtree(root, Integer.MIN_VALUE, Integer.MAX_VALUE, count);
+        if (count[0] != size()) {
+            throw new IllegalStateException("Tree holds " + count[0] + " nodes, size is " + size());
+        }
+
+        // Every allocated node is either in the tree or on the free list
+        int free = 0;
+        for (int node = file.getInt(region + FREE); node != NIL; node = left(node)) {
+            free++;
+        }
+        if (count[0] + free != file.getInt(region + ALLOCATED)) {
+            throw new IllegalStateException("Arena holds " + file.getInt(region + ALLOCATED) + " nodes, "
+                    + count[0] + " in the tree and " + free + " free");
+        }
+    }
+
+    /**
+     * Verifies the given subtree: key bounds, parent links, no red node with a red child and equal black height on every path.
+     * @param node the root of the subtree
+     * @param min the smallest user ID allowed in the subtree
+     * @param max the largest user ID allowed in the subtree
+     * @param count accumulates the number of nodes visited
+     * @return the black height of the subtree, counting the NIL leaves
+     */
+    private int checkSubtree(int node, int min, int max, int[] count) {
+        if (node == NIL) {
+            return 1;
+        }
+        count[0]++;
+
+        int userID = get(node, USER);
+        if (userID < min || userID > max) {
+            throw new IllegalStateException("User " + userID + " is out of order");
+        }
+        if ((left(node) != NIL && parent(left(node)) != node) || (right(node) != NIL && parent(right(node)) != node)) {
+            throw new IllegalStateException("Broken parent link below user " + userID);
+        }
+        if (color(node) == RED && (color(left(node)) == RED || color(right(node)) == RED)) {
+            throw new IllegalStateException("Red node for user " + userID + " has a red child");
+        }
+
+        int leftHeight  = checkSubtree(left(node), min, userID, count);
+        int rightHeight = checkSubtree(right(node), userID, max, count);
+        if (leftHeight != rightHeight) {
+            throw new IllegalStateException("Black heights differ below user " + userID);
+        }
+        return leftHeight + (color(node) == BLACK ? 1 : 0);
+    }
+}
@@ -0,0 +1,34 @@
+// Free seats of a section held in a MappedStateFile
+
+/**
+ * The SeatPool of an engine with a state file: a MappedHeap of int seat IDs.
+ */
+public class MappedSeatPool extends MappedHeap implements SeatPool {
+    /**
+     * Opens the pool whose heap descriptor is at the given offset
+     * @param file the state file
+     * @param descriptor the offset of the heap descriptor
+     */
+    public MappedSeatPool(MappedStateFile file, int descriptor) {
+        super(file, descriptor, 4);
+    }
+
+    @Override
+    int compare(int a, int b) {
+        return Integer.compare(file.getInt(offsetOf(a)), file.getInt(offsetOf(b)));
+    }
+
+    @Override
+    public void insert(int seatID) {
+        int position = append();
+        file.putInt(offsetOf(position), seatID);
+        siftUp(position);
+    }
+
+    @Override
+    public int extractMin() {
+        int seatID = file.getInt(offsetOf(0));
+        removeAt(0);
+        return seatID;
+    }
+}
@@ -0,0 +1,500 @@
+// Memory-mapped file holding the engine's live state across restarts
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * A file that is mapped into memory and holds fixed-layout records, so a restarted process resumes by mapping
+ * it instead of deserializing anything. The file starts with a header:
+ *
+ *   0  magic           int     "GTMS"
+ *   4  version         int
+ *   8  state           int     CLEAN once closed, OPEN while a process has it mapped
+ *   12 root            int     offset of the owner's root record, 0 until it has one
+ *   16 epoch           long    number of commits
+ *   24 allocated       int     end of the space handed out by allocate
+ *   32 journal offset  long    length of the server's command journal the last commit reflects
+ *   40 checksum        long    CRC32C of the header fields above, written when the file is closed
+ *
+ * The rest of the file is handed out by allocate to fixed-layout regions: the reservation tree's nodes, each
+ * section's free-seat and waitlist heaps and the index of waiting users. A region that outgrows its space moves
+ * to a new allocation twice the size, and the space it leaves is not reused.
+ *
+ * Every change goes through putInt and putLong. A write to data that already existed at the last commit first
+ * records the old value in an undo log, <file>.undo, which is mapped as well; writes to space allocated since
+ * need no record. commit empties the log, so the file always holds the last commit plus logged changes. When a
+ * process stops without closing the file, killed or crashed, the next open rolls the log back and resumes from
+ * the last commit, in time proportional to the changes since rather than to the size of the file. savepoint and
+ * rollbackTo undo the changes of a single failed command the same way.
+ * The data and the log reach the page cache as they are written, and the page cache outlives a killed process,
+ * but only close forces them to disk: a power failure while the file is open can lose or tear it. The header
+ * checksum detects a header torn while it was being closed. One process at a time may map the file; it holds an
+ * exclusive lock on it while it does.
+ */
+public class MappedStateFile implements Closeable {
+    static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC      = 0x47544D53;
+    private static final int VERSION    = 3;
+    private static final int OPEN       = 0;
+    private static final int CLEAN      = 1;
+
+    private static final int MAGIC_OFFSET           = 0;
+    private static final int VERSION_OFFSET         = 4;
+    private static final int STATE_OFFSET           = 8;
+    private static final int ROOT_OFFSET            = 12;
+    private static final int EPOCH_OFFSET           = 16;
+    private static final int ALLOCATED_OFFSET       = 24;
+    private static final int JOURNAL_OFFSET_OFFSET  = 32;
+    private static final int CHECKSUM_OFFSET        = 40;
+
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    // The undo log holds its record count, then one record per logged write: offset, width and old value
+    private static final int UNDO_HEADER    = 16;
+    private static final int UNDO_RECORD    = 4 + 4 + 8;
+    private static final int UNDO_INITIAL   = 1 << 16;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final File file;
+    private final FileChannel channel;
+    // Null for a scratch file, which is never reopened
+    private final FileLock lock;
+    private FileChannel undoChannel;
+    private MappedByteBuffer buffer;
+    private MappedByteBuffer undo;
+    private int undoCount;
+    // Writes below this offset are logged: the allocation end at the last commit or savepoint
+    private int logBelow;
+    private boolean closed;
+
+    private MappedStateFile(File file, FileChannel channel, FileLock lock, boolean created) throws IOException {
+        this.file       = file;
+        this.channel    = channel;
+        this.lock       = lock;
+        // An existing file is mapped at its own size, so a file that turns out not to be valid is left untouched
+        this.buffer     = channel.map(FileChannel.MapMode.READ_WRITE, 0, created ? INITIAL_SIZE : channel.size());
+    }
+
+    /**
+     * Maps the given state file, creating it if it does not exist or is empty. If the last process to map it
+     * did not close it, the changes it made after its last commit are rolled back first.
+     * @param file the state file
+     * @return the mapped file, marked OPEN
+     * @throws IOException if the file is in use by another process, is not a state file of this version,
+     *                     or its header or undo log is damaged
+     */
+    public static MappedStateFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedStateFile state = null;
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("State file " + file + " is in use by another process");
+            }
+            if (channel.size() > 0 && channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a state file");
+            }
+
+            boolean created = channel.size() == 0;
+            state           = new MappedStateFile(file, channel, lock, created);
+            if (!created) {
+                state.validateHeader();
+            }
+            state.undoChannel   = FileChannel.open(undoFile(file).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            state.undo          = state.undoChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(state.undoChannel.size(), UNDO_INITIAL));
+            if (created) {
+                // A log left by an earlier file of this name does not describe this one
+                state.initialize();
+                state.setUndoCount(0);
+            } else {
+                state.recover();
+            }
+
+            // From here on the data changes in place, so an interrupted run must not look clean
+            state.buffer.putInt(STATE_OFFSET, OPEN);
+            state.logBelow = state.allocated();
+            return state;
+        } catch (IOException | RuntimeException e) {
+            if (state != null && state.undoChannel != null) {
+                state.undoChannel.close();
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a scratch file: the same allocator and accessors over a new file that is never reopened, so nothing
+     * is logged, locked or forced. A spilling waitlist keeps its index of spilled users in one.
+     * @param file the file to create, which must not exist
+     * @return the mapped file
+     * @throws IOException if the file cannot be created
+     */
+    public static MappedStateFile createScratch(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedStateFile scratch = new MappedStateFile(file, channel, null, true);
+            scratch.initialize();
+            return scratch;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes a state file that is not mapped, together with its undo log
+     * @param file the state file
+     */
+    public static void delete(File file) {
+        file.delete();
+        undoFile(file).delete();
+    }
+
+    private static File undoFile(File file) {
+        return new File(file.getPath() + ".undo");
+    }
+
+    /**
+     * Writes the header of a new, empty state file
+     */
+    private void initialize() {
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(ROOT_OFFSET, 0);
+        buffer.putLong(EPOCH_OFFSET, 0);
+        buffer.putInt(ALLOCATED_OFFSET, HEADER_SIZE);
+        buffer.putLong(JOURNAL_OFFSET_OFFSET, 0);
+    }
+
+    /**
+     * Checks that the mapped file is a state file of this version and, if it was closed cleanly, that its header is intact.
+     * @throws IOException if it is not
+     */
+    private void validateHeader() throws IOException {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException(file + " is not a version " + VERSION + " state file");
+        }
+        if (buffer.getInt(STATE_OFFSET) == CLEAN && buffer.getLong(CHECKSUM_OFFSET) != headerChecksum()) {
+            throw new IOException("State file " + file + " fails its header checksum at epoch " + epoch()
+                    + "; it was torn while being closed");
+        }
+        int allocated = allocated();
+        if (allocated < HEADER_SIZE || allocated > channel.size()) {
+            throw new IOException("State file " + file + " is truncated");
+        }
+    }
+
+    /**
+     * Rolls back the changes logged since the last commit by a process that stopped without closing the file.
+     * @throws IOException if the undo log is damaged
+     */
+    private void recover() throws IOException {
+        undoCount = undo.getInt(0);
+        if (undoCount < 0 || UNDO_HEADER + (long) undoCount * UNDO_RECORD > undo.capacity()) {
+            throw new IOException("Undo log of " + file + " is damaged");
+        }
+        for (int i = 0; i < undoCount; i++) {
+            int record = UNDO_HEADER + i * UNDO_RECORD;
+            int offset = undo.getInt(record);
+            int width  = undo.getInt(record + 4);
+            if (offset < 0 || (width != 4 && width != 8) || offset + width > buffer.capacity()) {
+                throw new IOException("Undo log of " + file + " is damaged at record " + i);
+            }
+        }
+        if (buffer.getInt(STATE_OFFSET) == OPEN) {
+            System.err.println("State file " + file + " was not closed; rolling back " + undoCount
+                    + " writes to its last commit, epoch " + epoch());
+        }
+        rollbackTo(0);
+    }
+
+    /**
+     * Computes the checksum of the header fields before the checksum
+     * @return the CRC32C of the bytes in [0, CHECKSUM_OFFSET)
+     */
+    private long headerChecksum() {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(0).limit(CHECKSUM_OFFSET));
+        return crc.getValue();
+    }
+
+    private void setUndoCount(int count) {
+        undoCount = count;
+        undo.putInt(0, count);
+    }
+
+    /**
+     * Records the current value at the given offset in the undo log. The record is complete before the count
+     * that makes it part of the log is written, and both before the data changes.
+     * @param offset the offset about to be written
+     * @param width 4 or 8 bytes
+     * @param old the value at the offset
+     */
+    private void log(int offset, int width, long old) {
+        int record = UNDO_HEADER + undoCount * UNDO_RECORD;
+        if (record + UNDO_RECORD > undo.capacity()) {
+            growUndo();
+        }
+        undo.putInt(record, offset);
+        undo.putInt(record + 4, width);
+        undo.putLong(record + 8, old);
+        setUndoCount(undoCount + 1);
+    }
+
+    private void growUndo() {
+        long capacity = (long) undo.capacity() * 2;
+        if (capacity > Integer.MAX_VALUE) {
+            throw new UncheckedIOException(new IOException("Undo log of " + file + " cannot grow past 2 GB; commit more often"));
+        }
+        try {
+            undo = undoChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the undo log of " + file, e);
+        }
+    }
+
+    private void checkWritable() {
+        if (closed) {
+            throw new IllegalStateException("The state file has been committed and closed");
+        }
+    }
+
+    public int getInt(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    public long getLong(int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * Writes an int, logging the old value if the offset held committed data
+     * @param offset the offset in the file
+     * @param value the value to write
+     */
+    public void putInt(int offset, int value) {
+        checkWritable();
+        if (offset < logBelow) {
+            log(offset, 4, buffer.getInt(offset));
+        }
+        buffer.putInt(offset, value);
+    }
+
+    /**
+     * Writes a long, logging the old value if the offset held committed data
+     * @param offset the offset in the file
+     * @param value the value to write
+     */
+    public void putLong(int offset, long value) {
+        checkWritable();
+        if (offset < logBelow) {
+            log(offset, 8, buffer.getLong(offset));
+        }
+        buffer.putLong(offset, value);
+    }
+
+    /**
+     * Copies bytes into space allocated since the last commit or savepoint, which needs no undo records
+     * @param from the offset to copy from
+     * @param to the offset of the fresh allocation
+     * @param length the number of bytes
+     */
+    public void copy(int from, int to, int length) {
+        checkFresh(to);
+        buffer.put(to, buffer, from, length);
+    }
+
+    /**
+     * Writes bytes into space allocated since the last commit or savepoint
+     * @param offset the offset of the fresh allocation
+     * @param bytes the bytes to write
+     */
+    public void putBytes(int offset, byte[] bytes) {
+        checkFresh(offset);
+        buffer.put(offset, bytes);
+    }
+
+    public byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    private void checkFresh(int offset) {
+        checkWritable();
+        if (offset < logBelow) {
+            throw new IllegalArgumentException("Offset " + offset + " holds committed data and must be written through putInt or putLong");
+        }
+    }
+
+    /**
+     * Hands out zeroed space at the end of the file, growing it if needed. Allocations are 8-byte aligned.
+     * @param length the number of bytes
+     * @return the offset of the space
+     * @throws UncheckedIOException if the file cannot grow
+     */
+    public int allocate(int length) {
+        int offset  = allocated();
+        long end    = offset + ((length + 7L) & ~7L);
+        ensureCapacity(end);
+        putInt(ALLOCATED_OFFSET, (int) end);
+
+        // Space given back by a rollback still holds what was written to it
+        for (int zeroed = 0; zeroed < length; zeroed += ZEROS.length) {
+            buffer.put(offset + zeroed, ZEROS, 0, Math.min(ZEROS.length, length - zeroed));
+        }
+        return offset;
+    }
+
+    private int allocated() {
+        return buffer.getInt(ALLOCATED_OFFSET);
+    }
+
+    /**
+     * Grows the file and its mapping so that it holds at least the given number of bytes.
+     * @param size the number of bytes needed
+     * @throws UncheckedIOException if the file cannot grow
+     */
+    private void ensureCapacity(long size) {
+        if (size <= buffer.capacity()) {
+            return;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new UncheckedIOException(new IOException("State file " + file + " cannot grow past 2 GB"));
+        }
+
+        long capacity = buffer.capacity();
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the state file " + file, e);
+        }
+    }
+
+    /**
+     * Marks the start of a change that may have to be undone on its own, such as a single command.
+     * @return the savepoint to pass to rollbackTo
+     */
+    public int savepoint() {
+        logBelow = allocated();
+        return undoCount;
+    }
+
+    /**
+     * Undoes every write logged since the given savepoint, newest first, including the allocations made since.
+     * Undoing is idempotent, so a rollback interrupted by a crash is simply repeated on the next open.
+     * @param savepoint a savepoint taken since the last commit, or 0 for the last commit itself
+     */
+    public void rollbackTo(int savepoint) {
+        for (int i = undoCount - 1; i >= savepoint; i--) {
+            int record = UNDO_HEADER + i * UNDO_RECORD;
+            int offset = undo.getInt(record);
+            if (undo.getInt(record + 4) == 8) {
+                buffer.putLong(offset, undo.getLong(record + 8));
+            } else {
+                buffer.putInt(offset, (int) undo.getLong(record + 8));
+            }
+        }
+        setUndoCount(savepoint);
+        logBelow = allocated();
+    }
+
+    /**
+     * Makes every change so far part of the state a restarted process resumes from, and starts a new undo log.
+     * Nothing is forced to disk; see the class comment.
+     */
+    public void commit() {
+        putLong(EPOCH_OFFSET, epoch() + 1);
+        // Emptying the log is a single write, so a process stopped at any point leaves either commit behind
+        setUndoCount(0);
+        logBelow = allocated();
+    }
+
+    /**
+     * Returns the offset of the owner's root record
+     * @return the root offset, or 0 if the file has none yet
+     */
+    public int root() {
+        return buffer.getInt(ROOT_OFFSET);
+    }
+
+    /**
+     * Records where the owner's root record is
+     * @param offset the offset of the root record
+     */
+    public void setRoot(int offset) {
+        putInt(ROOT_OFFSET, offset);
+    }
+
+    /**
+     * Returns whether the file has been committed and closed, after which its data must not change.
+     * @return true once closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of commits completed on this file
+     * @return the epoch of the file
+     */
+    public long epoch() {
+        return buffer.getLong(EPOCH_OFFSET);
+    }
+
+    /**
+     * Returns the length of the command journal that the last commit reflects
+     * @return the journal offset from which a server resumes replaying, 0 if the file was never used with a journal
+     */
+    public long journalOffset() {
+        return buffer.getLong(JOURNAL_OFFSET_OFFSET);
+    }
+
+    /**
+     * Sets the journal offset that the next commit records
+     * @param journalOffset the length of the journal once every command applied to the state is in it
+     */
+    public void setJournalOffset(long journalOffset) {
+        putLong(JOURNAL_OFFSET_OFFSET, journalOffset);
+    }
+
+    /**
+     * Commits, forces the data and the emptied undo log to disk and then marks the file CLEAN. A scratch file is only closed.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (lock != null) {
+            commit();
+            buffer.force();
+            undo.force();
+
+            // The header only says CLEAN once everything it vouches for is on disk
+            buffer.putInt(STATE_OFFSET, CLEAN);
+            buffer.putLong(CHECKSUM_OFFSET, headerChecksum());
+            buffer.force();
+            lock.release();
+            undoChannel.close();
+        }
+        closed = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,143 @@
+// Waitlist of a section held in a MappedStateFile
+
+/**
+ * The Waitlist of an engine with a state file: a MappedHeap of 24-byte entries,
+ *
+ *   userID int, priority int, timestamp long, aging offset long
+ *
+ * ordered as WaitlistEntry.compareTo orders them. Every waiting user of every section is found through one
+ * MappedIntLongHashMap in the same file, mapping the userID to (section << 32 | heap position), which the heap
+ * keeps current as entries move. Nothing is spilled: the operating system pages the heap in and out, so
+ * gtm.waitlist.memoryLimit does not apply.
+ */
+public class MappedWaitlist extends MappedHeap implements Waitlist {
+    private static final int USER           = 0;
+    private static final int PRIORITY       = 4;
+    private static final int TIMESTAMP      = 8;
+    private static final int AGING_OFFSET   = 16;
+    private static final int ENTRY_SIZE     = 24;
+
+    private final int section;
+    private final MappedIntLongHashMap waiting;
+
+    /**
+     * Opens the waitlist whose heap descriptor is at the given offset
+     * @param file the state file
+     * @param descriptor the offset of the heap descriptor
+     * @param section the position of the waitlist's section, recorded in the index
+     * @param waiting the index of waiting users shared by all sections
+     */
+    public MappedWaitlist(MappedStateFile file, int descriptor, int section, MappedIntLongHashMap waiting) {
+        super(file, descriptor, ENTRY_SIZE);
+        this.section = section;
+        this.waiting = waiting;
+    }
+
+    private long rank(int offset) {
+        return file.getInt(offset + PRIORITY) * GatorTicketMaster.WaitlistEntry.AGING_SCALE - file.getLong(offset + AGING_OFFSET);
+    }
+
+    @Override
+    int compare(int a, int b) {
+        int entryA = offsetOf(a);
+        int entryB = offsetOf(b);
+        long rankA = rank(entryA);
+        long rankB = rank(entryB);
+        if (rankA != rankB) {
+            return Long.compare(rankB, rankA); // Higher effective priority first
+        }
+        return Long.compare(file.getLong(entryA + TIMESTAMP), file.getLong(entryB + TIMESTAMP)); // Earlier timestamp first
+    }
+
+    @Override
+    void moved(int position) {
+        waiting.put(file.getInt(offsetOf(position) + USER), ((long) section << 32) | position);
+    }
+
+    /**
+     * Returns the heap position of a user waiting in this section
+     * @param userID the ID of the user
+     * @return the position, or -1 if the user is not waiting here
+     */
+    private int positionOf(int userID) {
+        long location = waiting.get(userID, -1);
+        return location == -1 || (int) (location >>> 32) != section ? -1 : (int) location;
+    }
+
+    @Override
+    public void insert(GatorTicketMaster.WaitlistEntry entry) {
+        // Both may grow the file, so both happen before anything is written
+        waiting.ensureCapacity(waiting.size() + 1);
+        int position    = append();
+        int offset      = offsetOf(position);
+        file.putInt(offset + USER, entry.userID);
+        file.putInt(offset + PRIORITY, entry.priority);
+        file.putLong(offset + TIMESTAMP, entry.timestamp);
+        file.putLong(offset + AGING_OFFSET, entry.agingOffset);
+        moved(position);
+        siftUp(position);
+    }
+
+    @Override
+    public GatorTicketMaster.WaitlistEntry extractMin() {
+        if (isEmpty()) {
+            return null;
+        }
+        int offset = offsetOf(0);
+        GatorTicketMaster.WaitlistEntry entry = new GatorTicketMaster.WaitlistEntry(file.getInt(offset + USER),
+                file.getInt(offset + PRIORITY), file.getLong(offset + TIMESTAMP), file.getLong(offset + AGING_OFFSET));
+        waiting.remove(entry.userID);
+        removeAt(0);
+        return entry;
+    }
+
+    @Override
+    public boolean remove(int userID) {
+        int position = positionOf(userID);
+        if (position == -1) {
+            return false;
+        }
+        waiting.remove(userID);
+        removeAt(position);
+        return true;
+    }
+
+    @Override
+    public boolean updatePriority(int userID, int newPriority) {
+        int position = positionOf(userID);
+        if (position == -1) {
+            return false;
+        }
+
+        int offset      = offsetOf(position);
+        int oldPriority = file.getInt(offset + PRIORITY);
+        file.putInt(offset + PRIORITY, newPriority);
+        // A lower priority is served later, so the entry moves down
+        if (newPriority < oldPriority) {
+            siftDown(position);
+        } else {
+            siftUp(position);
+        }
+        return true;
+    }
+
+    /**
+     * Verifies the heap order and that the index points at every entry of this waitlist.
+     * @throws IllegalStateException describing the first violation found
+     */
+    @Override
+    public void checkInvariants() {
+        super.checkInvariants();
+        for (int i = 0; i < size(); i++) {
+            int userID = file.getInt(offsetOf(i) + USER);
+            if (positionOf(userID) != i) {
+                throw new IllegalStateException("Index of user " + userID + " is " + positionOf(userID) + ", expected " + i);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Everything is in the state file, which the engine closes
+    }
+}
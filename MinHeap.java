@@ -7,6 +7,7 @@ import java.util.Map;
 public class MinHeap {
     private ArrayList<Object> heap;
     private Map<Integer, Integer> userIndexMap; // Maps userID to index in heap
+    private long siftSteps; // Swaps made while sifting, for diagnostics
 
     public MinHeap() {
         heap            = new ArrayList<>();
@@ -49,6 +50,14 @@ public class MinHeap {
         }
     }
 
+    /**
+     * Returns the minimum element of the heap without removing it.
+     * @return the minimum element from the heap, or null if the heap is empty
+     */
+    public Object peek() {
+        return heap.isEmpty() ? null : heap.get(0);
+    }
+
     /**
      * Extracts the minimum element from the heap and returns it.
      * @return the minimum element from the heap, or null if the heap is empty
@@ -135,9 +144,9 @@ public class MinHeap {
         else if (a instanceof GatorTicketMaster.WaitlistEntry && b instanceof GatorTicketMaster.WaitlistEntry) {
             GatorTicketMaster.WaitlistEntry entryA = (GatorTicketMaster.WaitlistEntry) a;
             GatorTicketMaster.WaitlistEntry entryB = (GatorTicketMaster.WaitlistEntry) b;
-            // Compare based on priority, higher priority first
-            if (entryA.priority != entryB.priority) {
-                return entryB.priority - entryA.priority;
+            // Compare based on effective (aged) priority, higher priority first
+            if (entryA.rank() != entryB.rank()) {
+                return Long.compare(entryB.rank(), entryA.rank());
             }
             // If priorities are equal, compare based on timestamp, earlier timestamp first
             return Long.compare(entryA.timestamp, entryB.timestamp);
@@ -152,6 +161,7 @@ public class MinHeap {
      * @param j the second index to swap
      */
     private void swap(int i, int j) {
+        siftSteps++;
         // Swap the elements at the given indices
         Object temp = heap.get(i);
         heap.set(i, heap.get(j));
@@ -230,6 +240,37 @@ public class MinHeap {
         return true;
     }
 
+    /**
+     * Verifies that every element is no smaller than its parent and that the userID map points at each waitlist entry.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void checkInvariants() {
+        int entries = 0;
+        for (int i = 0; i < heap.size(); i++) {
+            if (i > 0 && compare(heap.get((i - 1) / 2), heap.get(i)) > 0) {
+                throw new IllegalStateException("Heap order violated at index " + i);
+            }
+            if (heap.get(i) instanceof GatorTicketMaster.WaitlistEntry) {
+                int userID = ((GatorTicketMaster.WaitlistEntry) heap.get(i)).userID;
+                if (!Integer.valueOf(i).equals(userIndexMap.get(userID))) {
+                    throw new IllegalStateException("Index of user " + userID + " is " + userIndexMap.get(userID) + ", expected " + i);
+                }
+                entries++;
+            }
+        }
+        if (entries != userIndexMap.size()) {
+            throw new IllegalStateException("Index holds " + userIndexMap.size() + " users for " + entries + " waitlist entries");
+        }
+    }
+
+    /**
+     * Returns the number of sift steps, element swaps, taken since the heap was created
+     * @return the number of sift steps so far
+     */
+    public long siftSteps() {
+        return siftSteps;
+    }
+
     /**
      * Checks if the heap is empty
      * @return true if the heap is empty, otherwise false
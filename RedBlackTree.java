@@ -1,7 +1,7 @@
 import java.util.ArrayList;
 import java.util.List;
 
-public class RedBlackTree {
+public class RedBlackTree implements ReservationStore {
     private static final boolean RED    = true;
     private static final boolean BLACK  = false;
 
@@ -19,12 +19,30 @@ public class RedBlackTree {
     }
 
     private Node root;
+    private int size;
+    // Rotations performed so far, by inserts and deletes
+    private long rotations;
+    // Optional userID -> node index, so lookups and deletes by user skip the O(log n) descent
+    private final IntObjectHashMap<Node> index;
+
+    public RedBlackTree() {
+        this(false);
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param indexed whether to keep a hash index from user ID to node alongside the tree
+     */
+    public RedBlackTree(boolean indexed) {
+        index = indexed ? new IntObjectHashMap<>() : null;
+    }
 
     /**
      * Rotate the node to the left. This is used to balance the tree when a node is inserted.
      * @param node the node to rotate
      */
     private void rotateLeft(Node node) {
+        rotations++;
         Node rightChild = node.right;
         node.right      = rightChild.left;
 
@@ -55,6 +73,7 @@ public class RedBlackTree {
      * @param node the node to rotate
      */
     private void rotateRight(Node node) {
+        rotations++;
         // The right child of the node is the left child of its parent
         Node leftChild  = node.left;
         // Set the left child of the node to the right child of its left child
@@ -121,6 +140,10 @@ public class RedBlackTree {
 
         // Rebalance the tree after insertion
         rebalanceTreeAfterInsert(node);
+        size++;
+        if (index != null) {
+            index.put(userID, node);
+        }
     }
 
     /**
@@ -180,6 +203,11 @@ public class RedBlackTree {
      * @return the node with the given user ID, or null if no such node exists
      */
     public Node findNode(int userID) {
+        // A single hash probe when the tree is indexed
+        if (index != null) {
+            return index.get(userID);
+        }
+
         Node current = root;
         while (current != null) {
             // If the user ID of the current node is equal to the given user ID,
@@ -197,15 +225,71 @@ public class RedBlackTree {
         return null;
     }
 
+    @Override
+    public int findSeat(int userID) {
+        Node node = findNode(userID);
+        return node == null ? NO_SEAT : node.seatID;
+    }
+
+    @Override
+    public void delete(int userID) {
+        deleteNode(userID);
+    }
+
+    @Override
+    public Object locate(int userID) {
+        return findNode(userID);
+    }
+
+    @Override
+    public int seatAt(Object handle) {
+        return ((Node) handle).seatID;
+    }
+
+    @Override
+    public void deleteAt(Object handle) {
+        deleteNode((Node) handle);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long rebalanceSteps() {
+        return rotations;
+    }
+
     /**
      * Deletes the node with the specified userID from the tree.
      * @param userID the ID of the user whose node is to be deleted
      */
     public void deleteNode(int userID) {
-        // Find the node with the given userID
-        Node node = findNode(userID);
+        // Find the node with the given userID; with an index, removing the entry is the lookup
+        Node node = index != null ? index.remove(userID) : findNode(userID);
         if (node == null)
             return;
+        unlinkNode(node);
+    }
+
+    /**
+     * Deletes the given node, as returned by findNode, from the tree without searching for it again.
+     * @param node the node to delete
+     */
+    public void deleteNode(Node node) {
+        if (index != null) {
+            index.remove(node.userID);
+        }
+        unlinkNode(node);
+    }
+
+    /**
+     * Removes the given node from the tree and rebalances it. The node must already be gone from the index.
+     * @param node the node to remove
+     */
+    private void unlinkNode(Node node) {
+        size--;
 
         Node replacementChild, nodeToRemove;
         // Determine the node to be removed
@@ -240,6 +324,10 @@ public class RedBlackTree {
         if (nodeToRemove != node) {
             node.userID = nodeToRemove.userID;
             node.seatID = nodeToRemove.seatID;
+            // The successor's reservation now lives in the surviving node
+            if (index != null) {
+                index.put(node.userID, node);
+            }
         }
 
         // Fix the tree balance if nodeToRemove was black
@@ -361,6 +449,58 @@ public class RedBlackTree {
         }
     }
 
+    @Override
+    public void checkInvariants() {
+        if (root != null && (root.color != BLACK || root.parent != null)) {
+            throw new IllegalStateException("Root must be black and have no parent");
+        }
+
+        int[] count = new int[1];
+        checkSubtree(root, Integer.MIN_VALUE, Integer.MAX_VALUE, count);
+        if (count[0] != size) {
+            throw new IllegalStateException("Tree holds " + count[0] + " nodes, size is " + size);
+        }
+        if (index != null && index.size() != size) {
+            throw new IllegalStateException("Index holds " + index.size() + " users, size is " + size);
+        }
+    }
+
+    /**
+     * Verifies the given subtree: key bounds, parent links, no red node with a red child, equal black
+     * height on every path, and that the index points at each node.
+     * @param node the root of the subtree
+     * @param min the smallest user ID allowed in the subtree
+     * @param max the largest user ID allowed in the subtree
+     * @param count accumulates the number of nodes visited
+     * @return the black height of the subtree, counting the null leaves
+     */
+    private int checkSubtree(Node node, int min, int max, int[] count) {
+        if (node == null) {
+            return 1;
+        }
+        count[0]++;
+
+        if (node.userID < min || node.userID > max) {
+            throw new IllegalStateException("User " + node.userID + " is out of order");
+        }
+        if ((node.left != null && node.left.parent != node) || (node.right != null && node.right.parent != node)) {
+            throw new IllegalStateException("Broken parent link below user " + node.userID);
+        }
+        if (node.color == RED && ((node.left != null && node.left.color == RED) || (node.right != null && node.right.color == RED))) {
+            throw new IllegalStateException("Red node for user " + node.userID + " has a red child");
+        }
+        if (index != null && index.get(node.userID) != node) {
+            throw new IllegalStateException("Index does not point at the node of user " + node.userID);
+        }
+
+        int leftHeight  = checkSubtree(node.left, min, node.userID, count);
+        int rightHeight = checkSubtree(node.right, node.userID, max, count);
+        if (leftHeight != rightHeight) {
+            throw new IllegalStateException("Black heights differ below user " + node.userID);
+        }
+        return leftHeight + (node.color == BLACK ? 1 : 0);
+    }
+
     /**
      * Performs an inorder traversal of the Red-Black Tree.
      * This method returns a list of nodes in the tree sorted by their in-order sequence.
@@ -373,6 +513,36 @@ public class RedBlackTree {
         return result;
     }
 
+    @Override
+    public void forEachInRange(int fromUserID, int toUserID, Visitor visitor) {
+        forEachInRange(root, fromUserID, toUserID, visitor);
+    }
+
+    /**
+     * Visits the nodes of the given subtree whose user IDs lie in [fromUserID, toUserID], in order.
+     * Subtrees entirely outside the range are skipped, so the cost is O(log n + k) for k reservations in range.
+     * @param node the root of the subtree
+     * @param fromUserID the start of the user range
+     * @param toUserID the end of the user range
+     * @param visitor the visitor to call for each node in range
+     */
+    private void forEachInRange(Node node, int fromUserID, int toUserID, Visitor visitor) {
+        while (node != null) {
+            // Visit the left subtree only if it can hold user IDs in range
+            if (fromUserID < node.userID) {
+                forEachInRange(node.left, fromUserID, toUserID, visitor);
+            }
+            if (node.userID >= fromUserID && node.userID <= toUserID) {
+                visitor.visit(node.userID, node.seatID);
+            }
+            // Continue with the right subtree iteratively if it can hold user IDs in range
+            if (node.userID > toUserID) {
+                return;
+            }
+            node = node.right;
+        }
+    }
+
     /**
      * Helper method for performing an inorder traversal of the Red-Black Tree.
      * This method recursively traverses the tree and adds each node to the result list.
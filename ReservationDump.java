@@ -0,0 +1,131 @@
+// Parallel rendering of PrintReservations output
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Formats a seat-ordered set of reservations as "Seat X, User Y" lines, splitting it into chunks that are
+ * formatted into their own byte buffers in parallel on a ForkJoinPool. The buffers are returned in seat order,
+ * ready for a gathering write, and together hold exactly the bytes println would have written one line at a time.
+ */
+public class ReservationDump {
+    // Reservations per buffer; large enough to amortize a task, small enough to spread over all cores
+    private static final int CHUNK_SIZE = 1 << 15;
+
+    private static final byte[] SEAT        = "Seat ".getBytes();
+    private static final byte[] USER        = ", User ".getBytes();
+    private static final byte[] LINE_END    = System.lineSeparator().getBytes();
+
+    // Formats the chunks in [fromChunk, toChunk), splitting the range until a single chunk is left
+    private static class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final long[] reservations;
+        final ByteBuffer[] buffers;
+        final int fromChunk;
+        final int toChunk;
+
+        RenderTask(long[] reservations, ByteBuffer[] buffers, int fromChunk, int toChunk) {
+            this.reservations   = reservations;
+            this.buffers        = buffers;
+            this.fromChunk      = fromChunk;
+            this.toChunk        = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                int from = fromChunk * CHUNK_SIZE;
+                buffers[fromChunk] = renderChunk(reservations, from, Math.min(from + CHUNK_SIZE, reservations.length));
+                return;
+            }
+            int middle = (fromChunk + toChunk) >>> 1;
+            invokeAll(new RenderTask(reservations, buffers, fromChunk, middle),
+                    new RenderTask(reservations, buffers, middle, toChunk));
+        }
+    }
+
+    /**
+     * Formats the given reservations in parallel.
+     * @param reservations the reservations packed as (seatID << 32 | userID), in the order to print them
+     * @param pool the pool to format on
+     * @return one buffer per chunk, in order, each positioned at 0 with its limit at the end of its lines
+     */
+    public static ByteBuffer[] render(long[] reservations, ForkJoinPool pool) {
+        int chunks = (reservations.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ByteBuffer[] buffers = new ByteBuffer[chunks];
+        if (chunks > 0) {
+            pool.invoke(new RenderTask(reservations, buffers, 0, chunks));
+        }
+        return buffers;
+    }
+
+    /**
+     * Formats the reservations in [from, to) into a buffer of exactly the right size.
+     * @param reservations the packed reservations
+     * @param from the first reservation of the chunk
+     * @param to the end of the chunk
+     * @return the formatted lines
+     */
+    private static ByteBuffer renderChunk(long[] reservations, int from, int to) {
+        // Measure first, so the chunk is formatted into a single array without growing it
+        int length = (to - from) * (SEAT.length + USER.length + LINE_END.length);
+        for (int i = from; i < to; i++) {
+            length += digits((int) (reservations[i] >>> 32)) + digits((int) reservations[i]);
+        }
+
+        byte[] bytes    = new byte[length];
+        int position    = 0;
+        for (int i = from; i < to; i++) {
+            position = put(bytes, position, SEAT);
+            position = putInt(bytes, position, (int) (reservations[i] >>> 32));
+            position = put(bytes, position, USER);
+            position = putInt(bytes, position, (int) reservations[i]);
+            position = put(bytes, position, LINE_END);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Returns the number of characters in the decimal form of the given value, as Integer.toString would print it.
+     * @param value the value
+     * @return the length of its decimal form, including a minus sign
+     */
+    private static int digits(int value) {
+        long magnitude  = Math.abs((long) value);
+        int length      = value < 0 ? 2 : 1;
+        while (magnitude >= 10) {
+            magnitude /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    private static int put(byte[] bytes, int position, byte[] text) {
+        System.arraycopy(text, 0, bytes, position, text.length);
+        return position + text.length;
+    }
+
+    /**
+     * Writes the decimal form of the given value.
+     * @param bytes the array to write to
+     * @param position where to write
+     * @return the position after the value
+     */
+    private static int putInt(byte[] bytes, int position, int value) {
+        int end         = position + digits(value);
+        long magnitude  = Math.abs((long) value);
+        if (value < 0) {
+            bytes[position] = '-';
+        }
+
+        // Fill the digits from the right
+        int i = end;
+        do {
+            bytes[--i]  = (byte) ('0' + magnitude % 10);
+            magnitude  /= 10;
+        } while (magnitude > 0);
+        return end;
+    }
+}
@@ -0,0 +1,37 @@
+// Change event published by the ticketing engine
+
+/**
+ * A single change to the reservations or the waitlist, as published on the ReservationFeed.
+ * Events are numbered consecutively, so a subscriber can detect batches dropped under backpressure.
+ */
+public class ReservationEvent {
+    public enum Type {
+        RESERVED,           // A user was given a free seat
+        WAITLISTED,         // A user joined the waitlist
+        PROMOTED,           // A waitlisted user was given a seat that became free
+        CANCELED,           // A user canceled their reservation
+        RELEASED,           // A reservation was released by ReleaseSeats
+        EXITED_WAITLIST,    // A user left the waitlist, by ExitWaitlist or ReleaseSeats
+        PRIORITY_UPDATED,   // A waitlisted user's priority changed
+        REJECTED            // A Reserve request was turned away by the admission policy
+    }
+
+    public final long sequence;
+    public final Type type;
+    public final int userID;
+    public final int seatID;    // 0 if the event does not concern a seat
+    public final int priority;  // 0 if the event does not concern a priority
+
+    public ReservationEvent(long sequence, Type type, int userID, int seatID, int priority) {
+        this.sequence   = sequence;
+        this.type       = type;
+        this.userID     = userID;
+        this.seatID     = seatID;
+        this.priority   = priority;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + type + " user " + userID + " seat " + seatID + " priority " + priority;
+    }
+}
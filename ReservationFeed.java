@@ -0,0 +1,104 @@
+// Change feed of reservation events with backpressure
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes the engine's ReservationEvents in batches through java.util.concurrent.Flow.
+ * Events are collected and offered as one batch when the engine's owner flushes, which the server does once
+ * per batch of commands it applies, or as soon as maxBatchSize events are pending. Delivery runs
+ * on the publisher's executor and honours each subscriber's demand. Every subscriber has its own bounded
+ * ring of batches. Publishing never blocks the command loop: if a subscriber's ring is full, the batch is
+ * dropped for that subscriber only and counted, and the subscriber can tell from the sequence numbers
+ * that events are missing. TicketServer streams the feed to TCP clients with -Dgtm.feed.port.
+ */
+public class ReservationFeed implements Flow.Publisher<List<ReservationEvent>> {
+    private final SubmissionPublisher<List<ReservationEvent>> publisher;
+    private final ExecutorService delivery;
+    private final int maxBatchSize;
+    private final LongAdder droppedBatches = new LongAdder();
+    private List<ReservationEvent> batch;
+    private long nextSequence;
+
+    public ReservationFeed() {
+        this(Integer.getInteger("gtm.feed.bufferCapacity", 256), Integer.getInteger("gtm.feed.maxBatchSize", 512));
+    }
+
+    /**
+     * Creates a feed with the given limits.
+     * @param bufferCapacity the number of batches buffered per subscriber before batches are dropped
+     * @param maxBatchSize the number of events after which a batch is offered without waiting for the next flush
+     */
+    public ReservationFeed(int bufferCapacity, int maxBatchSize) {
+        // Each subscriber is drained by its own task, so a slow subscriber never delays the others
+        this.delivery       = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "gtm-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.publisher      = new SubmissionPublisher<>(this.delivery, bufferCapacity);
+        this.maxBatchSize   = maxBatchSize;
+        this.batch          = new ArrayList<>();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<ReservationEvent>> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Adds an event to the current batch. Called on the command loop only.
+     * @param type the kind of change
+     * @param userID the user concerned
+     * @param seatID the seat concerned, or 0
+     * @param priority the priority concerned, or 0
+     */
+    public void publish(ReservationEvent.Type type, int userID, int seatID, int priority) {
+        batch.add(new ReservationEvent(nextSequence++, type, userID, seatID, priority));
+        if (batch.size() >= maxBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Offers the current batch to all subscribers without blocking.
+     * Subscribers whose buffer is full skip the batch.
+     */
+    public void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (publisher.hasSubscribers()) {
+            publisher.offer(batch, (subscriber, dropped) -> {
+                droppedBatches.increment();
+                return false;
+            });
+        }
+        batch = new ArrayList<>();
+    }
+
+    /**
+     * Returns the number of batches dropped for slow subscribers so far.
+     * @return the number of dropped batches, counted once per subscriber
+     */
+    public long droppedBatches() {
+        return droppedBatches.sum();
+    }
+
+    /**
+     * Publishes any pending events and signals completion to all subscribers.
+     * The delivery threads finish the batches already buffered and then exit.
+     */
+    public void close() {
+        flush();
+        publisher.close();
+        delivery.shutdown();
+    }
+}
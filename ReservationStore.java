@@ -0,0 +1,115 @@
+// Ordered map from user ID to reserved seat ID
+
+/**
+ * The reservation store used by GatorTicketMaster: an ordered map from user ID to seat ID.
+ * A user holds at most one reservation. GatorTicketMaster.reserve turns away a user who already holds a seat or
+ * is waiting for one, so insert is never called for a user the store already holds.
+ */
+public interface ReservationStore {
+    // Returned by findSeat when the user has no reservation
+    int NO_SEAT = -1;
+
+    // Receives the reservations of a traversal in ascending user ID order
+    interface Visitor {
+        void visit(int userID, int seatID);
+    }
+
+    /**
+     * Inserts a reservation of the given seat for the given user, who must not already have one
+     * @param userID the ID of the user
+     * @param seatID the ID of the seat
+     */
+    void insert(int userID, int seatID);
+
+    /**
+     * Returns the seat reserved by the given user.
+     * @param userID the ID of the user
+     * @return the seat ID, or NO_SEAT if the user has no reservation
+     */
+    int findSeat(int userID);
+
+    /**
+     * Deletes the reservation of the given user, if any.
+     * @param userID the ID of the user
+     */
+    void delete(int userID);
+
+    /**
+     * Finds the reservation of the given user and returns a handle to it, so that seatAt and deleteAt reach it
+     * without searching again. A handle is only valid until the store is next modified.
+     * @param userID the ID of the user
+     * @return the handle, or null if the user has no reservation
+     */
+    Object locate(int userID);
+
+    /**
+     * Returns the seat of the reservation a handle points at
+     * @param handle a handle returned by locate
+     * @return the seat ID
+     */
+    int seatAt(Object handle);
+
+    /**
+     * Deletes the reservation a handle points at. The handle is no longer valid afterwards.
+     * @param handle a handle returned by locate
+     */
+    void deleteAt(Object handle);
+
+    /**
+     * Returns the number of reservations in the store
+     * @return the number of reservations
+     */
+    int size();
+
+    /**
+     * Returns the number of rebalancing steps taken since the store was created: rotations in a red-black tree,
+     * node splits, borrows and merges in a B+ tree. Sampled around a command to see how much restructuring it caused.
+     * @return the number of rebalancing steps so far
+     */
+    long rebalanceSteps();
+
+    /**
+     * Verifies the structural invariants of the store, such as balance, key order and the size count.
+     * Intended for verification runs; it visits every reservation.
+     * @throws IllegalStateException describing the first violation found
+     */
+    void checkInvariants();
+
+    /**
+     * Visits the reservations of the users in the range [fromUserID, toUserID] in ascending user ID order.
+     * The store must not be modified during the traversal.
+     * @param fromUserID the start of the user range
+     * @param toUserID the end of the user range
+     * @param visitor the visitor to call for each reservation
+     */
+    void forEachInRange(int fromUserID, int toUserID, Visitor visitor);
+
+    /**
+     * Visits all reservations in ascending user ID order.
+     * The store must not be modified during the traversal.
+     * @param visitor the visitor to call for each reservation
+     */
+    default void forEach(Visitor visitor) {
+        forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Creates a store by name, as selected with -Dgtm.store.
+     * @param name "rbtree" for the RedBlackTree with a userID hash index, "rbtree-plain" for the RedBlackTree
+     *             alone, or "btree" for the BPlusTree
+     * @return a new, empty store
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static ReservationStore create(String name) {
+        switch (name) {
+            case "rbtree":
+                return new RedBlackTree(true);
+            case "rbtree-plain":
+                return new RedBlackTree(false);
+            case "btree":
+                return new BPlusTree();
+            default:
+                throw new IllegalArgumentException("Unknown reservation store: " + name);
+        }
+    }
+}
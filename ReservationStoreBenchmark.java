@@ -0,0 +1,112 @@
+// Compares the reservation store implementations at several sizes
+
+import java.util.Random;
+
+/**
+ * Measures insert, lookup, range scan and delete times of the RedBlackTree, with and without its
+ * userID index, and the BPlusTree.
+ * Each size is run on a fresh store with user IDs inserted in random order, and the results are
+ * printed in nanoseconds per operation.
+ */
+public class ReservationStoreBenchmark {
+    private static final String[] STORES = { "rbtree", "rbtree-plain", "btree" };
+
+    // Keeps the JIT from discarding lookups whose results are otherwise unused
+    private static long checksum;
+
+    /**
+     * Returns the user IDs 1..size in a random order.
+     * @param size the number of user IDs
+     * @param random the source of randomness
+     * @return the shuffled user IDs
+     */
+    private static int[] shuffledUsers(int size, Random random) {
+        int[] users = new int[size];
+        for (int i = 0; i < size; i++) {
+            users[i] = i + 1;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j       = random.nextInt(i + 1);
+            int temp    = users[i];
+            users[i]    = users[j];
+            users[j]    = temp;
+        }
+        return users;
+    }
+
+    /**
+     * Runs all operations on a fresh store and prints the time per operation.
+     * @param name the name of the store, as accepted by ReservationStore.create
+     * @param size the number of reservations
+     * @param print whether to print the results, false for warm-up runs
+     */
+    private static void run(String name, int size, boolean print) {
+        Random random           = new Random(42);
+        int[] users             = shuffledUsers(size, random);
+        int[] lookups           = shuffledUsers(size, random);
+        ReservationStore store  = ReservationStore.create(name);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            store.insert(users[i], i + 1);
+        }
+        long insert = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            checksum += store.findSeat(lookups[i]);
+        }
+        long find = System.nanoTime() - start;
+
+        // Scan ranges of 100 users, as ReleaseSeats does
+        int scans   = Math.max(1, size / 100);
+        long[] sum  = new long[1];
+        start       = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            int from = 1 + random.nextInt(size);
+            store.forEachInRange(from, from + 99, (userID, seatID) -> sum[0] += seatID);
+        }
+        long scan   = System.nanoTime() - start;
+        checksum    += sum[0];
+
+        start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            store.delete(lookups[i]);
+        }
+        long delete = System.nanoTime() - start;
+
+        if (print) {
+            System.out.printf("%-12s %,12d %10.1f %10.1f %12.1f %10.1f%n", name, size,
+                    (double) insert / size, (double) find / size, (double) scan / scans, (double) delete / size);
+        }
+    }
+
+    /**
+     * Main method for running the benchmark from the command line.
+     * @param args the store sizes to measure, 10000 100000 1000000 if none are given
+     */
+    public static void main(String[] args) {
+        int[] sizes = { 10_000, 100_000, 1_000_000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // Warm up both stores so the measured runs use compiled code
+        for (int round = 0; round < 5; round++) {
+            for (String name : STORES) {
+                run(name, 100_000, false);
+            }
+        }
+
+        System.out.printf("%-12s %12s %10s %10s %12s %10s%n", "store", "size", "insert ns", "find ns", "scan100 ns", "delete ns");
+        for (int size : sizes) {
+            for (String name : STORES) {
+                run(name, size, true);
+            }
+        }
+        System.out.println("checksum " + checksum);
+    }
+}
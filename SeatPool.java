@@ -0,0 +1,46 @@
+// A section's free seats, lowest seat ID first
+
+/**
+ * The free seats of one section, handed out lowest seat ID first. GatorTicketMaster keeps them in memory as a
+ * HeapSeatPool, or in its state file as a MappedSeatPool.
+ */
+public interface SeatPool {
+    /**
+     * Returns a seat to the pool
+     * @param seatID the free seat
+     * @throws java.io.UncheckedIOException if the pool cannot grow, in which case it is unchanged
+     */
+    void insert(int seatID);
+
+    /**
+     * Removes and returns the lowest free seat. The pool must not be empty.
+     * @return the lowest free seat ID
+     */
+    int extractMin();
+
+    /**
+     * Returns the number of free seats
+     * @return the size of the pool
+     */
+    int size();
+
+    /**
+     * Checks if the pool is empty
+     * @return true if no seat is free, otherwise false
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of sift steps taken by the pool's heap, for diagnostics
+     * @return the number of sift steps so far
+     */
+    long siftSteps();
+
+    /**
+     * Verifies the heap order of the pool.
+     * @throws IllegalStateException describing the first violation found
+     */
+    void checkInvariants();
+}
@@ -0,0 +1,109 @@
+// Compact map from seat ID ranges to the section that owns them
+
+import java.util.Arrays;
+
+/**
+ * Maps each seat ID to a value, typically its section. Seats are added in ascending ranges, as Initialize
+ * and AddSeats number new seats after the existing ones, so the map is two parallel arrays holding the first
+ * seat of each range and its value. A lookup is a binary search over the ranges, O(log ranges), and adjacent
+ * ranges with the same value are merged so the arrays stay as small as the number of section changes.
+ * @param <V> the type of the values
+ */
+public class SeatRangeMap<V> {
+    private int[] starts;
+    private Object[] values;
+    private int count;
+    // The last seat covered by the map, or 0 if it is empty
+    private int lastSeat;
+
+    public SeatRangeMap() {
+        starts  = new int[8];
+        values  = new Object[8];
+    }
+
+    /**
+     * Maps the seats in [firstSeat, lastSeat] to the given value.
+     * @param firstSeat the first seat of the range, which must follow the last seat already mapped
+     * @param lastSeat the last seat of the range
+     * @param value the value for the range
+     * @throws IllegalArgumentException if the range does not come after the seats already mapped
+     */
+    public void append(int firstSeat, int lastSeat, V value) {
+        if (firstSeat <= this.lastSeat || lastSeat < firstSeat) {
+            throw new IllegalArgumentException("Seats " + firstSeat + " to " + lastSeat + " do not follow seat " + this.lastSeat);
+        }
+
+        // Extend the last range instead of starting a new one when the value and the seats continue it
+        boolean continues = count > 0 && values[count - 1] == value && firstSeat == this.lastSeat + 1;
+        if (!continues) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            starts[count] = firstSeat;
+            values[count] = value;
+            count++;
+        }
+        this.lastSeat = lastSeat;
+    }
+
+    /**
+     * Returns the value of the range holding the given seat.
+     * @param seatID the seat to look up
+     * @return the value of its range, or null if the seat is not mapped
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int seatID) {
+        if (seatID > lastSeat) {
+            return null;
+        }
+
+        // Find the last range that starts at or before the seat
+        int low     = 0;
+        int high    = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= seatID) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high < 0 ? null : (V) values[high];
+    }
+
+    /**
+     * Returns the number of ranges after merging
+     * @return the number of ranges
+     */
+    public int rangeCount() {
+        return count;
+    }
+
+    /**
+     * Returns the first seat of the range at the given position
+     * @param range the position of the range, from 0 to rangeCount() - 1
+     * @return the first seat of the range
+     */
+    public int rangeStart(int range) {
+        return starts[range];
+    }
+
+    /**
+     * Returns the value of the range at the given position
+     * @param range the position of the range, from 0 to rangeCount() - 1
+     * @return the value of the range
+     */
+    @SuppressWarnings("unchecked")
+    public V rangeValue(int range) {
+        return (V) values[range];
+    }
+
+    /**
+     * Returns the last seat covered by the map
+     * @return the last seat, or 0 if the map is empty
+     */
+    public int lastSeat() {
+        return lastSeat;
+    }
+}
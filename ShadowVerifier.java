@@ -0,0 +1,272 @@
+// Differential shadow mode: a reference engine and a candidate engine run the same trace side by side
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a trace through two engines at once and compares them command by command. The reference engine uses
+ * the plain RedBlackTree and an in-memory waitlist; the candidate uses the backends under test, selected with
+ * -Dgtm.shadow.store (default btree, or mapped for the whole engine state in a temporary state file, committed
+ * after every command) and -Dgtm.shadow.memoryLimit (default 0, no spilling; mapped waitlists never spill). Every command's
+ * output is compared, and every -Dgtm.shadow.checkEvery commands (default 1000, 0 to disable) the internal
+ * invariants of both engines are verified: red-black properties, B+ tree fill and order, heap order and
+ * index consistency. The trace is streamed, so only one command is held at a time.
+ * On the first divergence the trace up to that command is minimized by delta debugging, replaying at most
+ * -Dgtm.shadow.minimizeBudget candidate traces (default 2000), and written to <input>_shadow_trace.txt.
+ */
+public class ShadowVerifier {
+    private static final String TRACE_SUFFIX = "_shadow_trace.txt";
+
+    private final String candidateStore;
+    private final int candidateMemoryLimit;
+    private final int checkEvery;
+    private int replaysLeft;
+
+    // The two engines and their outputs, one pair per run
+    private GatorTicketMaster reference;
+    private StringWriter referenceOutput;
+    private GatorTicketMaster candidate;
+    private StringWriter candidateOutput;
+    private File candidateStateFile;
+
+    public ShadowVerifier(String candidateStore, int candidateMemoryLimit, int checkEvery, int minimizeBudget) {
+        this.candidateStore         = candidateStore;
+        this.candidateMemoryLimit   = candidateMemoryLimit;
+        this.checkEvery             = checkEvery;
+        this.replaysLeft            = minimizeBudget;
+    }
+
+    /**
+     * Creates a fresh reference engine and a fresh candidate engine.
+     * @throws IOException if the candidate's state file cannot be created
+     */
+    private void startEngines() throws IOException {
+        referenceOutput = new StringWriter();
+        reference       = new GatorTicketMaster(new PrintWriter(referenceOutput),
+                ReservationStore.create("rbtree-plain"), 0);
+        candidateOutput = new StringWriter();
+        if (candidateStore.equals("mapped")) {
+            candidateStateFile  = File.createTempFile("gtm-shadow-", ".state");
+            candidate           = new GatorTicketMaster(new PrintWriter(candidateOutput),
+                    MappedStateFile.open(candidateStateFile));
+        } else {
+            candidate           = new GatorTicketMaster(new PrintWriter(candidateOutput),
+                    ReservationStore.create(candidateStore), candidateMemoryLimit);
+        }
+    }
+
+    /**
+     * Releases the spill files of both engines and deletes the candidate's state file. Their output is discarded.
+     */
+    private void stopEngines() {
+        reference.quit();
+        candidate.quit();
+        if (candidateStateFile != null) {
+            MappedStateFile.delete(candidateStateFile);
+            candidateStateFile = null;
+        }
+    }
+
+    /**
+     * Applies one command to both engines and compares the results.
+     * @param line the command line
+     * @param checkInvariants whether to verify both engines' invariants after the command
+     * @return a description of the divergence, or null if the engines agree
+     */
+    private String step(String line, boolean checkInvariants) {
+        String expected;
+        String actual;
+        try {
+            expected = TicketServer.apply(reference, referenceOutput, line);
+        } catch (RuntimeException e) {
+            return "reference failed: " + e;
+        }
+        try {
+            actual = TicketServer.apply(candidate, candidateOutput, line);
+            candidate.commitState();
+        } catch (RuntimeException e) {
+            return "candidate failed: " + e;
+        }
+        if (!expected.equals(actual)) {
+            return "output differs" + System.lineSeparator()
+                    + "  reference: " + expected.trim().replace(System.lineSeparator(), " | ") + System.lineSeparator()
+                    + "  candidate: " + actual.trim().replace(System.lineSeparator(), " | ");
+        }
+
+        return checkInvariants ? checkInvariants() : null;
+    }
+
+    /**
+     * Verifies the internal invariants of both engines.
+     * @return a description of the first violation, or null if both engines are consistent
+     */
+    private String checkInvariants() {
+        try {
+            reference.checkInvariants();
+        } catch (IllegalStateException e) {
+            return "reference invariant violated: " + e.getMessage();
+        }
+        try {
+            candidate.checkInvariants();
+        } catch (IllegalStateException e) {
+            return "candidate invariant violated: " + e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Streams the input file through both engines until Quit, the end of the file or the first divergence.
+     * @param inputFile the trace to verify
+     * @return true if the engines agreed on the whole trace
+     * @throws IOException if the trace cannot be read or the minimized trace cannot be written
+     */
+    public boolean verify(String inputFile) throws IOException {
+        long start      = System.nanoTime();
+        long commands   = 0;
+        String divergence = null;
+
+        startEngines();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                commands++;
+                divergence = step(line, checkEvery > 0 && commands % checkEvery == 0);
+                if (divergence != null || line.trim().startsWith("Quit")) {
+                    break;
+                }
+            }
+        }
+        if (divergence == null) {
+            // Catch a violation introduced since the last sampled check
+            divergence = checkInvariants();
+        }
+        stopEngines();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d commands in %.2f s (%.0f commands/sec)%n", inputFile, commands, seconds, commands / seconds);
+        if (divergence == null) {
+            System.out.println("No divergence between rbtree-plain and " + describeCandidate());
+            return true;
+        }
+
+        System.out.println("Divergence at command " + commands + ": " + divergence);
+
+        // Shrink the trace up to the divergence to a small one that still diverges
+        List<String> trace = readPrefix(inputFile, commands);
+        List<String> minimized = minimize(trace);
+        String traceFile = (inputFile.endsWith(".txt") ? inputFile.substring(0, inputFile.length() - 4) : inputFile)
+                + TRACE_SUFFIX;
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(traceFile)))) {
+            for (String command : minimized) {
+                writer.println(command);
+            }
+        }
+        System.out.println("Minimized trace of " + minimized.size() + " commands written to " + traceFile);
+        return false;
+    }
+
+    private String describeCandidate() {
+        return candidateStore + (candidateMemoryLimit > 0 ? " with a waitlist memory limit of " + candidateMemoryLimit : "");
+    }
+
+    /**
+     * Reads the first commands of the input file.
+     * @param inputFile the trace
+     * @param count the number of commands to read
+     * @return the commands in order
+     * @throws IOException if the trace cannot be read
+     */
+    private static List<String> readPrefix(String inputFile, long count) throws IOException {
+        List<String> prefix = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16)) {
+            String line;
+            while (prefix.size() < count && (line = reader.readLine()) != null) {
+                prefix.add(line);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Replays the given trace on fresh engines, checking the invariants after every command.
+     * @param trace the commands to replay
+     * @return true if the engines diverge on the trace
+     * @throws IOException if the candidate's state file cannot be created
+     */
+    private boolean diverges(List<String> trace) throws IOException {
+        replaysLeft--;
+        startEngines();
+        try {
+            for (String line : trace) {
+                if (step(line, true) != null) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            stopEngines();
+        }
+    }
+
+    /**
+     * Minimizes a diverging trace with delta debugging: the trace is cut into chunks, and any chunk whose
+     * removal keeps the divergence is dropped. Chunks are halved whenever no chunk can be dropped, until
+     * single commands have been tried or the replay budget is spent.
+     * @param trace a trace on which the engines diverge
+     * @return a shorter trace on which they still diverge
+     * @throws IOException if the candidate's state file cannot be created
+     */
+    private List<String> minimize(List<String> trace) throws IOException {
+        int chunks = 2;
+        while (trace.size() >= 2 && replaysLeft > 0) {
+            int chunkSize   = (trace.size() + chunks - 1) / chunks;
+            boolean reduced = false;
+
+            for (int from = 0; from < trace.size() && replaysLeft > 0; from += chunkSize) {
+                // Try the trace without [from, from + chunkSize)
+                List<String> complement = new ArrayList<>(trace.subList(0, from));
+                complement.addAll(trace.subList(Math.min(from + chunkSize, trace.size()), trace.size()));
+                if (!complement.isEmpty() && diverges(complement)) {
+                    trace   = complement;
+                    chunks  = Math.max(chunks - 1, 2);
+                    reduced = true;
+                    break;
+                }
+            }
+
+            if (!reduced) {
+                if (chunkSize == 1) {
+                    break;
+                }
+                chunks = Math.min(chunks * 2, trace.size());
+            }
+        }
+        return trace;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java [-Dgtm.shadow.store=btree|mapped] [-Dgtm.shadow.memoryLimit=0] [-Dgtm.shadow.checkEvery=1000] ShadowVerifier <input_file>...");
+            return;
+        }
+
+        boolean agreed = true;
+        for (String inputFile : args) {
+            ShadowVerifier verifier = new ShadowVerifier(
+                    System.getProperty("gtm.shadow.store", "btree"),
+                    Integer.getInteger("gtm.shadow.memoryLimit", 0),
+                    Integer.getInteger("gtm.shadow.checkEvery", 1000),
+                    Integer.getInteger("gtm.shadow.minimizeBudget", 2000));
+            try {
+                agreed &= verifier.verify(inputFile);
+            } catch (IOException e) {
+                System.err.println("Error verifying " + inputFile + ": " + e.getMessage());
+                agreed = false;
+            }
+        }
+        if (!agreed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+// Flight Recorder event for a slow command
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emitted by the engine for every command that takes at least -Dgtm.slowCommand.thresholdMicros, while a
+ * Flight Recorder recording has the event enabled. The event spans the command, so in JDK Mission Control it
+ * lines up with the GC pauses and I/O of the same moment; its fields say how much work the command did.
+ */
+@Name("gtm.SlowCommand")
+@Label("Slow Command")
+@Category("GatorTicketMaster")
+@Description("A command that took longer than the slow command threshold")
+@StackTrace(false)
+public class SlowCommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Arguments")
+    String arguments;
+
+    @Label("Tree Size")
+    @Description("Reservations in the store after the command")
+    int treeSize;
+
+    @Label("Waitlist Depth")
+    @Description("Users waiting in all sections after the command")
+    int waitlistDepth;
+
+    @Label("Heap Sift Steps")
+    @Description("Swaps made by the free-seat and waitlist heaps during the command")
+    long siftSteps;
+
+    @Label("Tree Rotations")
+    @Description("Rotations, or B+ tree splits, borrows and merges, made by the reservation store during the command")
+    long treeRotations;
+}
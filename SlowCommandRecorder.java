@@ -0,0 +1,178 @@
+// Bounded in-memory record of the most recent slow commands
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the last few commands that took at least a threshold, in a ring that overwrites its oldest entry,
+ * so tail latency can be diagnosed after the fact. Fast commands cost the engine two clock reads and a few counter
+ * reads. The ring is printed to standard error on Quit, and, if a dump signal is configured, for every live
+ * engine when the process receives that signal, e.g. kill -USR1 <pid> for a server that never sees a Quit.
+ *
+ *   -Dgtm.slowCommand.thresholdMicros=T    commands taking T microseconds or more are slow (default 100000)
+ *   -Dgtm.slowCommand.ringSize=N           the ring holds the last N slow commands (default 64)
+ *   -Dgtm.slowCommand.signal=S             also print the rings on signal S, such as USR1 (the JVM itself uses USR2)
+ */
+public class SlowCommandRecorder {
+    // Recorders of the live engines, dumped together on the signal
+    private static final Set<SlowCommandRecorder> RECORDERS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static boolean signalInstalled;
+
+    private final long thresholdNanos;
+    private final Entry[] ring;
+    // Slow commands recorded so far; the newest is at (recorded - 1) % ring.length
+    private long recorded;
+
+    // One slow command
+    private static class Entry {
+        final long sequence;
+        final String line;
+        final long durationNanos;
+        final int treeSize;
+        final int waitlistDepth;
+        final long siftSteps;
+        final long treeRotations;
+
+        Entry(long sequence, String line, long durationNanos, int treeSize, int waitlistDepth, long siftSteps, long treeRotations) {
+            this.sequence       = sequence;
+            this.line           = line;
+            this.durationNanos  = durationNanos;
+            this.treeSize       = treeSize;
+            this.waitlistDepth  = waitlistDepth;
+            this.siftSteps      = siftSteps;
+            this.treeRotations  = treeRotations;
+        }
+    }
+
+    // Implements sun.misc.SignalHandler through a proxy, dumping every live engine's ring
+    private static class SignalDump implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("handle")) {
+                dumpAll(System.err);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a recorder.
+     * @param thresholdNanos the duration from which a command counts as slow
+     * @param capacity the number of slow commands kept
+     */
+    public SlowCommandRecorder(long thresholdNanos, int capacity) {
+        this.thresholdNanos = thresholdNanos;
+        this.ring           = new Entry[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Creates a recorder configured with the gtm.slowCommand system properties and registers it for the dump signal.
+     * @return the new recorder
+     */
+    public static SlowCommandRecorder fromSystemProperties() {
+        SlowCommandRecorder recorder = new SlowCommandRecorder(
+                Long.getLong("gtm.slowCommand.thresholdMicros", 100_000) * 1000,
+                Integer.getInteger("gtm.slowCommand.ringSize", 64));
+        RECORDERS.add(recorder);
+        installSignalHandler();
+        return recorder;
+    }
+
+    /**
+     * Checks whether a command of the given duration counts as slow
+     * @param durationNanos the duration of the command
+     * @return true if the command should be recorded
+     */
+    public boolean isSlow(long durationNanos) {
+        return durationNanos >= thresholdNanos;
+    }
+
+    /**
+     * Adds a slow command to the ring, replacing the oldest one if the ring is full.
+     * @param sequence the command's position in the engine's command stream
+     * @param line the command line
+     * @param durationNanos how long the command took
+     * @param treeSize the number of reservations after the command
+     * @param waitlistDepth the number of waiting users after the command
+     * @param siftSteps the heap sift steps taken by the command
+     * @param treeRotations the tree rotations taken by the command
+     */
+    public synchronized void record(long sequence, String line, long durationNanos, int treeSize, int waitlistDepth,
+                                    long siftSteps, long treeRotations) {
+        ring[(int) (recorded % ring.length)] = new Entry(sequence, line, durationNanos, treeSize, waitlistDepth, siftSteps, treeRotations);
+        recorded++;
+    }
+
+    /**
+     * Prints the slow commands in the ring, oldest first. Prints nothing if no command was slow.
+     * @param out the stream to print to
+     */
+    public synchronized void dump(PrintStream out) {
+        if (recorded == 0) {
+            return;
+        }
+
+        long first = Math.max(0, recorded - ring.length);
+        out.println("Slow commands (" + (recorded - first) + " most recent of " + recorded + " at or over "
+                + thresholdNanos / 1000 + " us):");
+        for (long i = first; i < recorded; i++) {
+            Entry entry = ring[(int) (i % ring.length)];
+            out.println("  #" + entry.sequence + " " + entry.line + " took " + entry.durationNanos / 1000 + " us"
+                    + ", tree size " + entry.treeSize + ", waitlist " + entry.waitlistDepth
+                    + ", sift steps " + entry.siftSteps + ", rotations " + entry.treeRotations);
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the ring on Quit and stops dumping it on the signal.
+     * @param out the stream to print to
+     */
+    public void close(PrintStream out) {
+        RECORDERS.remove(this);
+        dump(out);
+    }
+
+    /**
+     * Installs the dump signal handler once per process, if -Dgtm.slowCommand.signal names a signal.
+     * sun.misc.Signal is looked up reflectively, so the build carries no internal-API warnings and the engine
+     * still runs where the class is missing. Building the proxy takes tens of milliseconds, which is why it is opt-in.
+     */
+    private static synchronized void installSignalHandler() {
+        String signalName = System.getProperty("gtm.slowCommand.signal");
+        if (signalInstalled || signalName == null) {
+            return;
+        }
+        signalInstalled = true;
+
+        try {
+            Class<?> signalClass    = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass   = Class.forName("sun.misc.SignalHandler");
+            Object handler          = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] { handlerClass }, new SignalDump());
+            Object signal           = signalClass.getConstructor(String.class).newInstance(signalName);
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // The signal is unknown or taken, or the platform has no sun.misc.Signal; the ring is still printed on Quit
+            System.err.println("Could not install the slow command dump on signal " + signalName + ": " + e);
+        }
+    }
+
+    /**
+     * Prints the rings of all live engines
+     * @param out the stream to print to
+     */
+    static void dumpAll(PrintStream out) {
+        SlowCommandRecorder[] recorders;
+        synchronized (RECORDERS) {
+            recorders = RECORDERS.toArray(new SlowCommandRecorder[0]);
+        }
+        for (SlowCommandRecorder recorder : recorders) {
+            recorder.dump(out);
+        }
+    }
+}
@@ -0,0 +1,511 @@
+// Two-tier waitlist: a MinHeap in memory with its tail spilled to sorted run files
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A waitlist that keeps at most memoryLimit entries in an in-memory MinHeap. When the heap grows past
+ * the limit, its worse half is written to disk as a run file sorted in waitlist order. extractMin merges
+ * the heap with the heads of all runs, so runs are read back lazily, one buffered record at a time, as
+ * seats free up. Spilled users are tracked in a userID index kept in a memory-mapped file next to the
+ * runs, so ExitWaitlist and UpdatePriority still work for them without holding every spilled user on the
+ * heap. The record stays in its run file and is skipped when the merge reaches it.
+ * Every run being merged holds an open file and a read buffer, so once there are more than MAX_RUNS runs the
+ * smaller ones are merged into one, dropping their removed records. Like the tiers of a log-structured store,
+ * a record is only copied again when its run is among the smallest, so merging stays cheap per spilled entry. A run file is deleted once it has been read to the end,
+ * and the rest by close, or by a shutdown hook when the JVM exits first, as a server never closes its waitlists.
+ * With a memory limit of 0 nothing is ever spilled and the waitlist behaves exactly like a MinHeap.
+ */
+public class SpillingWaitlist implements Waitlist {
+    // userID, priority, timestamp and aging offset
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8;
+    // Most runs merged by extractMin before they are combined into one
+    private static final int MAX_RUNS    = 16;
+    private static final int READ_BUFFER = 1 << 14;
+
+    private final MinHeap memory;
+    private final int memoryLimit;
+    private final File spillParent;
+    private File spillDirectory;
+    // Deletes the spill directory if the JVM exits before close
+    private Thread cleanup;
+
+    // Runs that still hold live entries, ordered by their current head entry
+    private final PriorityQueue<Run> runs;
+    // Maps the userID of every spilled entry to (run id << 32 | record index), kept in a scratch file of the
+    // spill directory and created with it
+    private MappedStateFile indexFile;
+    private MappedIntLongHashMap spilledIndex;
+    private int nextRunID;
+
+    // A sorted run file that is read back sequentially
+    private class Run implements Comparable<Run> {
+        final int id;
+        final File file;
+        DataInputStream input;
+        int remaining;
+        int position = -1;
+        GatorTicketMaster.WaitlistEntry head;
+
+        /**
+         * Opens a run file for reading from the given record on. The first record becomes the head on advance.
+         * @param id the ID of the run
+         * @param file the run file
+         * @param count the number of records in the file
+         * @param start the index of the first record to read
+         */
+        Run(int id, File file, int count, int start) throws IOException {
+            this.id         = id;
+            this.file       = file;
+            this.remaining  = count - start;
+            this.position   = start - 1;
+            this.input      = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER));
+            input.skipNBytes((long) start * RECORD_SIZE);
+        }
+
+        /**
+         * Moves the head to the next record that is still live in the index.
+         * @return true if the run has a head, false if it is exhausted (and has been closed)
+         */
+        boolean advance() throws IOException {
+            while (remaining > 0) {
+                head = readRecord(input);
+                position++;
+                remaining--;
+                if (spilledIndex.get(head.userID, -1) == location(id, position)) {
+                    return true;
+                }
+            }
+            head = null;
+            input.close();
+            return false;
+        }
+
+        /**
+         * Opens a second reader of this run's file, starting at its current head, so the run can be copied
+         * without moving this reader.
+         * @return the new reader, not yet advanced
+         */
+        Run reopen() throws IOException {
+            return new Run(id, file, position + 1 + remaining, position);
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // Nothing is lost; the file is only read
+            }
+        }
+
+        /**
+         * Checks whether the head was removed or moved back to memory since it was read.
+         * @return true if the head is no longer live
+         */
+        boolean isHeadStale() {
+            return spilledIndex.get(head.userID, -1) != location(id, position);
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return head.compareTo(other.head);
+        }
+    }
+
+    /**
+     * Creates a waitlist that spills to the system temporary directory.
+     * @param memoryLimit the maximum number of entries kept in memory, or 0 to never spill
+     */
+    public SpillingWaitlist(int memoryLimit) {
+        this(memoryLimit, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Creates a waitlist that spills below the given directory
+     * @param memoryLimit the maximum number of entries kept in memory, or 0 to never spill
+     * @param spillParent the directory in which the run files are created
+     */
+    public SpillingWaitlist(int memoryLimit, File spillParent) {
+        this.memory         = new MinHeap();
+        this.memoryLimit    = memoryLimit;
+        this.spillParent    = spillParent;
+        this.runs           = new PriorityQueue<>();
+    }
+
+    private static long location(int runID, int position) {
+        return ((long) runID << 32) | position;
+    }
+
+    /**
+     * Inserts the given entry, spilling the worse half of memory to disk if the memory limit is exceeded.
+     * @param entry the entry to insert
+     * @throws UncheckedIOException if the spill fails, in which case the entry is not inserted
+     */
+    @Override
+    public void insert(GatorTicketMaster.WaitlistEntry entry) {
+        memory.insert(entry);
+        if (memoryLimit > 0 && memory.size() > memoryLimit) {
+            try {
+                spill();
+            } catch (UncheckedIOException e) {
+                memory.remove(entry.userID);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Drains the in-memory heap in order, keeps the better half in memory and writes the rest as a new sorted run.
+     * If the run cannot be written, every entry is put back in memory and the waitlist is unchanged.
+     */
+    private void spill() {
+        List<GatorTicketMaster.WaitlistEntry> drained = new ArrayList<>(memory.size());
+        while (!memory.isEmpty()) {
+            drained.add((GatorTicketMaster.WaitlistEntry) memory.extractMin());
+        }
+        int keep = memoryLimit / 2;
+
+        List<GatorTicketMaster.WaitlistEntry> tail = drained.subList(keep, drained.size());
+        Run run;
+        try {
+            startSpilling();
+            // Growing the index first means recording the run below cannot fail halfway
+            spilledIndex.ensureCapacity(spilledIndex.size() + tail.size());
+            int[] next = { 0 };
+            run = writeRun(() -> next[0] < tail.size() ? tail.get(next[0]++) : null);
+        } catch (IOException | UncheckedIOException e) {
+            for (GatorTicketMaster.WaitlistEntry entry : drained) {
+                memory.insert(entry);
+            }
+            throw new UncheckedIOException("Could not spill the waitlist", e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause());
+        }
+
+        for (int i = 0; i < tail.size(); i++) {
+            spilledIndex.put(tail.get(i).userID, location(run.id, i));
+        }
+        // Entries come back in order, so every insert lands at the bottom of the heap without sifting
+        for (int i = 0; i < keep; i++) {
+            memory.insert(drained.get(i));
+        }
+        enqueue(run);
+
+        if (runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+
+    // Supplies the records of a new run in waitlist order
+    private interface RecordSource {
+        GatorTicketMaster.WaitlistEntry next() throws IOException;
+    }
+
+    /**
+     * Creates the spill directory, the spilled index and the shutdown hook that deletes them, on the first spill.
+     * @throws IOException if the directory cannot be created
+     */
+    private void startSpilling() throws IOException {
+        if (spillDirectory != null) {
+            return;
+        }
+        File directory  = Files.createTempDirectory(spillParent.toPath(), "gtm-waitlist").toFile();
+        try {
+            indexFile       = MappedStateFile.createScratch(new File(directory, "index.bin"));
+            spilledIndex    = MappedIntLongHashMap.create(indexFile, memoryLimit);
+        } catch (IOException | UncheckedIOException e) {
+            if (indexFile != null) {
+                indexFile.close();
+                indexFile = null;
+            }
+            deleteDirectory(directory);
+            throw e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+        }
+        spillDirectory  = directory;
+        cleanup         = new Thread(() -> deleteDirectory(directory), "gtm-waitlist-cleanup");
+        Runtime.getRuntime().addShutdownHook(cleanup);
+    }
+
+    /**
+     * Deletes the spill directory and every file left in it.
+     * @param directory the spill directory
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes a new run file holding the given records. Recording where they went is left to the caller.
+     * @param source the records in waitlist order, ending with null
+     * @return the new run, not yet advanced
+     * @throws IOException if the run cannot be written; the partial file is deleted
+     */
+    private Run writeRun(RecordSource source) throws IOException {
+        int runID   = nextRunID++;
+        File file   = new File(spillDirectory, "run-" + runID + ".bin");
+        int count   = 0;
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            GatorTicketMaster.WaitlistEntry entry;
+            while ((entry = source.next()) != null) {
+                writeRecord(output, entry);
+                count++;
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return new Run(runID, file, count, 0);
+    }
+
+    /**
+     * Adds a run to the merge at its next live record, or deletes it if it has none left.
+     * @param run the run to add
+     */
+    private void enqueue(Run run) {
+        try {
+            if (run.advance()) {
+                runs.add(run);
+                return;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the spilled waitlist", e);
+        }
+        run.file.delete();
+    }
+
+    /**
+     * Combines the smaller runs into one, copying only their live records, so the files and read buffers held open
+     * stay bounded however often the waitlist spills. The runs are read through readers of their own, so if the
+     * copy fails the runs are left exactly as they were and the merge is retried on the next spill.
+     * The index is then pointed at the new run by reading it back, rather than collecting its locations on the heap.
+     * Every record of the new run is live when it is written, so this only replaces values and never grows the index,
+     * and if the read fails partway the old runs are kept: the index decides which copy of each record is live.
+     */
+    private void mergeRuns() {
+        // Merge the runs with the fewest records left until MAX_RUNS / 2 runs remain
+        List<Run> sources = new ArrayList<>(runs);
+        sources.sort((a, b) -> Integer.compare(a.remaining, b.remaining));
+        sources = sources.subList(0, sources.size() - MAX_RUNS / 2 + 1);
+
+        PriorityQueue<Run> readers  = new PriorityQueue<>();
+        Run run;
+        try {
+            for (Run source : sources) {
+                Run reader = source.reopen();
+                if (reader.advance()) {
+                    readers.add(reader);
+                }
+            }
+            run = writeRun(() -> {
+                Run reader = readers.poll();
+                if (reader == null) {
+                    return null;
+                }
+                GatorTicketMaster.WaitlistEntry entry = reader.head;
+                if (reader.advance()) {
+                    readers.add(reader);
+                }
+                return entry;
+            });
+        } catch (IOException e) {
+            System.err.println("Could not merge the spilled waitlist runs: " + e.getMessage());
+            return;
+        } finally {
+            for (Run reader : readers) {
+                reader.close();
+            }
+        }
+
+        int count = run.remaining;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), READ_BUFFER))) {
+            for (int i = 0; i < count; i++) {
+                spilledIndex.put(readRecord(input).userID, location(run.id, i));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not index the merged waitlist run: " + e.getMessage());
+            enqueue(run);
+            return;
+        }
+
+        for (Run source : sources) {
+            runs.remove(source);
+            source.close();
+            source.file.delete();
+        }
+        enqueue(run);
+    }
+
+    /**
+     * Returns the run with the best live head, discarding heads that were removed or updated since they were read.
+     * @return the run with the best head, or null if nothing is spilled
+     */
+    private Run bestRun() {
+        while (!runs.isEmpty() && runs.peek().isHeadStale()) {
+            enqueue(runs.poll());
+        }
+        return runs.peek();
+    }
+
+    /**
+     * Extracts the entry with the highest priority from memory or disk
+     * @return the entry with the highest priority, or null if the waitlist is empty
+     */
+    @Override
+    public GatorTicketMaster.WaitlistEntry extractMin() {
+        Run run = bestRun();
+        GatorTicketMaster.WaitlistEntry top = (GatorTicketMaster.WaitlistEntry) memory.peek();
+        if (run == null || (top != null && top.compareTo(run.head) <= 0)) {
+            return (GatorTicketMaster.WaitlistEntry) memory.extractMin();
+        }
+
+        // The best entry is on disk; take it and move the run to its next record
+        GatorTicketMaster.WaitlistEntry entry = run.head;
+        spilledIndex.remove(entry.userID);
+        enqueue(runs.poll());
+        return entry;
+    }
+
+    /**
+     * Removes the user with the given user ID from the waitlist.
+     * A spilled user is only dropped from the index; the record is skipped once the merge reaches it.
+     * @param userID the user ID of the user to remove
+     * @return true if the user was found and removed, otherwise false
+     */
+    @Override
+    public boolean remove(int userID) {
+        return memory.remove(userID) || (spilledIndex != null && spilledIndex.remove(userID));
+    }
+
+    /**
+     * Updates the priority of the user with the given user ID.
+     * A spilled user is read back from its run and reinserted in memory, keeping its arrival time and aging offset.
+     * @param userID the user ID of the user to update
+     * @param newPriority the new priority of the user
+     * @return true if the user was found and updated, otherwise false
+     * @throws UncheckedIOException if a spilled entry cannot be read or moved to memory, in which case nothing changes
+     */
+    @Override
+    public boolean updatePriority(int userID, int newPriority) {
+        if (memory.updatePriority(userID, newPriority)) {
+            return true;
+        }
+        if (spilledIndex == null) {
+            return false;
+        }
+
+        long location = spilledIndex.get(userID, -1);
+        if (location == -1) {
+            return false;
+        }
+
+        GatorTicketMaster.WaitlistEntry entry;
+        File file = new File(spillDirectory, "run-" + (int) (location >>> 32) + ".bin");
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek((location & 0xFFFFFFFFL) * RECORD_SIZE);
+            entry = readRecord(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the spilled waitlist", e);
+        }
+
+        spilledIndex.remove(userID);
+        entry.priority = newPriority;
+        try {
+            insert(entry);
+        } catch (UncheckedIOException e) {
+            // The record is still live in its run, so pointing the index back at it undoes the update
+            spilledIndex.put(userID, location);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Verifies the in-memory heap, the memory limit and that every run still waiting to be merged has a live head.
+     * @throws IllegalStateException describing the first violation found
+     */
+    @Override
+    public void checkInvariants() {
+        memory.checkInvariants();
+        if (memoryLimit > 0 && memory.size() > memoryLimit) {
+            throw new IllegalStateException("Waitlist holds " + memory.size() + " entries in memory, limit is " + memoryLimit);
+        }
+        for (Run run : runs) {
+            if (run.head == null) {
+                throw new IllegalStateException("Exhausted run " + run.id + " is still being merged");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sift steps taken by the in-memory heap
+     * @return the number of sift steps so far
+     */
+    @Override
+    public long siftSteps() {
+        return memory.siftSteps();
+    }
+
+    /**
+     * Checks if the waitlist is empty
+     * @return true if no user is waiting, otherwise false
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of users waiting, in memory and on disk.
+     * @return the size of the waitlist
+     */
+    @Override
+    public int size() {
+        return memory.size() + (spilledIndex == null ? 0 : spilledIndex.size());
+    }
+
+    /**
+     * Closes the runs and deletes the spill directory with every file in it.
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) {
+            run.close();
+        }
+        runs.clear();
+        if (spillDirectory == null) {
+            return;
+        }
+        try {
+            indexFile.close();
+        } catch (IOException e) {
+            // The file is deleted below either way
+        }
+        deleteDirectory(spillDirectory);
+        try {
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook deletes the same files
+        }
+        spillDirectory  = null;
+        indexFile       = null;
+        spilledIndex    = null;
+    }
+
+    private static void writeRecord(DataOutput output, GatorTicketMaster.WaitlistEntry entry) throws IOException {
+        output.writeInt(entry.userID);
+        output.writeInt(entry.priority);
+        output.writeLong(entry.timestamp);
+        output.writeLong(entry.agingOffset);
+    }
+
+    private static GatorTicketMaster.WaitlistEntry readRecord(DataInput input) throws IOException {
+        return new GatorTicketMaster.WaitlistEntry(input.readInt(), input.readInt(), input.readLong(), input.readLong());
+    }
+}
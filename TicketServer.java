@@ -0,0 +1,383 @@
+// Loopback TCP front-end for the ticketing engine
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Accepts the command syntax of the input files over TCP on localhost.
+ * Every connection is served by virtual threads, while all commands are applied by one sequencer thread
+ * so the engine itself stays single-threaded. Clients may pipeline any number of commands per round-trip,
+ * with bounded queues pushing back on a client that sends faster than it is served;
+ * each command is answered by its output lines followed by an empty line, in the order the commands were sent.
+ * With a journal, every applied command is logged for a standby replica before its response is released.
+ * With -Dgtm.feed.port, the engine's change feed is streamed to clients of that port through a FeedServer.
+ */
+public class TicketServer {
+    private static final int MAX_BATCH      = 1024;
+    private static final int BACKLOG        = 8192;
+    // Commands queued for the sequencer, and per connection awaiting their response. A client that sends
+    // faster than the engine applies, or reads its responses, blocks its reader, and TCP pushes back on it.
+    private static final int MAX_QUEUED     = 1 << 16;
+    private static final int MAX_PENDING    = 1 << 12;
+
+    private final GatorTicketMaster engine;
+    private final StringWriter engineOutput;
+    private final BlockingQueue<Request> commands;
+    private final ExecutorService connectionThreads;
+    private final CommandJournal journal;
+
+    // A single command together with the output it produced
+    static class Request {
+        final String line;
+        final CountDownLatch done = new CountDownLatch(1);
+        String response;
+
+        Request(String line) {
+            this.line = line;
+        }
+
+        Request(String line, String response) {
+            this(line);
+            complete(response);
+        }
+
+        void complete(String response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        String await() throws InterruptedException {
+            done.await();
+            return response;
+        }
+    }
+
+    /**
+     * Creates a server for the given engine.
+     * @param engine the engine to apply commands to
+     * @param engineOutput the buffer the engine prints to
+     * @param journal the journal to log applied commands to, or null for none
+     */
+    public TicketServer(GatorTicketMaster engine, StringWriter engineOutput, CommandJournal journal) {
+        this.engine             = engine;
+        this.engineOutput       = engineOutput;
+        this.journal            = journal;
+        this.commands           = new ArrayBlockingQueue<>(MAX_QUEUED);
+        this.connectionThreads  = newVirtualThreadExecutor();
+    }
+
+    /**
+     * Starts a server on the given port and blocks accepting connections.
+     * @param port the loopback port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public static void start(int port) throws IOException {
+        // Only the journal can bring a state file back after a crash
+        if (System.getProperty("gtm.state.file") != null) {
+            throw new IOException("-Dgtm.state.file needs a journal file to recover from a crash");
+        }
+
+        StringWriter engineOutput = new StringWriter();
+        new TicketServer(new GatorTicketMaster(new PrintWriter(engineOutput)), engineOutput, null).serve(port);
+    }
+
+    /**
+     * Starts a primary server that journals every command. Commands already in the journal, from an earlier
+     * primary, are replayed first so the server resumes with the same state. With -Dgtm.state.file the engine
+     * resumes from the state file instead and only replays the commands journaled after its last commit, which
+     * follows every batch; if the previous primary crashed, the file is first rolled back to that commit.
+     * @param port the loopback port to listen on
+     * @param journalFile the journal shared with the standby
+     * @throws IOException if another primary is running, the journal was written with other settings,
+     *                     or the journal, state file or port cannot be used
+     */
+    public static void startPrimary(int port, File journalFile) throws IOException {
+        FileLock lock = CommandJournal.tryLockPrimary(journalFile);
+        if (lock == null) {
+            throw new IOException("Another primary is already journaling to " + journalFile);
+        }
+
+        String stateFile = System.getProperty("gtm.state.file");
+        JournalFollower replica;
+        if (stateFile == null) {
+            replica = new JournalFollower(journalFile);
+        } else {
+            MappedStateFile state = MappedStateFile.open(new File(stateFile));
+            if (state.journalOffset() > journalFile.length()) {
+                state.close();
+                throw new IOException("State file " + stateFile + " reflects " + state.journalOffset()
+                        + " bytes of journal, but " + journalFile + " holds only " + journalFile.length());
+            }
+            StringWriter engineOutput = new StringWriter();
+            replica = new JournalFollower(journalFile, new GatorTicketMaster(new PrintWriter(engineOutput), state),
+                    engineOutput, state.journalOffset());
+        }
+        replica.catchUp();
+        replica.truncateIncompleteLine();
+
+        CommandJournal commandJournal = new CommandJournal(journalFile, lock, replica.engine().settings());
+        if (stateFile != null) {
+            // The state is committed after every batch and closed when the server is stopped, between two
+            // batches, together with the journal length it reflects
+            GatorTicketMaster engine = replica.engine();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                synchronized (engine) {
+                    try {
+                        engine.closeState(commandJournal.flushedLength());
+                    } catch (IOException e) {
+                        // Left OPEN, the state file is rolled back to its last commit on the next start
+                        System.err.println("Error writing the journal: " + e.getMessage());
+                    }
+                }
+            }, "gtm-state-commit"));
+        }
+        replica.serve(port, commandJournal);
+    }
+
+    /**
+     * Starts a hot standby that applies the primary's journal as it is written and, once the primary's
+     * lock is released because the process stopped, takes over its port and journal.
+     * @param port the loopback port to serve on after the takeover
+     * @param journalFile the journal written by the primary
+     * @throws IOException if the journal cannot be read or was written with other settings, or the port cannot be bound
+     */
+    public static void startStandby(int port, File journalFile) throws IOException {
+        JournalFollower replica = new JournalFollower(journalFile);
+        System.out.println("GatorTicketMaster standing by on " + journalFile);
+
+        FileLock lock = replica.awaitTakeover();
+        System.out.println("Primary lost; took over after applying " + replica.appliedCount() + " commands");
+        replica.serve(port, new CommandJournal(journalFile, lock, replica.engine().settings()));
+    }
+
+    /**
+     * Starts the sequencer thread and accepts connections until the process is stopped.
+     * @param port the loopback port to listen on
+     * @throws IOException if the port or the feed port cannot be bound
+     */
+    public void serve(int port) throws IOException {
+        // The feed is created before the sequencer starts, as the engine is only touched by one thread at a time
+        Integer feedPort = Integer.getInteger("gtm.feed.port");
+        if (feedPort != null) {
+            new FeedServer(engine.changeFeed(), feedPort).start();
+        }
+
+        Thread sequencer = new Thread(this::sequence, "gtm-sequencer");
+        sequencer.setDaemon(true);
+        sequencer.start();
+
+        try (ServerSocket server = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress())) {
+            System.out.println("GatorTicketMaster listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connectionThreads.execute(() -> handle(socket));
+            }
+        }
+    }
+
+    /**
+     * Applies queued commands to the engine in arrival order.
+     * Commands are drained in batches so a burst of pipelined requests is handled without a queue hand-off per command.
+     */
+    private void sequence() {
+        List<Request> batch     = new ArrayList<>(MAX_BATCH);
+        List<String> responses  = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(commands.take());
+                commands.drainTo(batch, MAX_BATCH - 1);
+
+                synchronized (engine) {
+                    for (Request request : batch) {
+                        boolean applied = execute(engine, engineOutput, request.line);
+                        responses.add(takeOutput(engineOutput));
+                        // A failed command left the engine unchanged, so a replica replaying the journal must not see it
+                        if (applied && journal != null) {
+                            journal.append(request.line);
+                        }
+                    }
+                    // The whole batch reaches the feed's subscribers as one delivery
+                    engine.flushChangeFeed();
+                }
+
+                // Group commit: one journal write for the whole batch, before any of its responses is released.
+                // The state file, if any, then commits the batch together with the journal length it reflects
+                if (journal != null) {
+                    long journalLength = journal.flushedLength();
+                    synchronized (engine) {
+                        engine.commitState(journalLength);
+                    }
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(responses.get(i));
+                }
+                batch.clear();
+                responses.clear();
+            }
+        } catch (IOException e) {
+            // Without the journal the standby would diverge, so stop and let it take over
+            System.err.println("Error writing the journal: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | Error e) {
+            // A command failed part way, or the sequencer itself did. Clients would wait forever on a dead
+            // sequencer, and the engine may no longer match the journal, so stop and let the standby take over
+            System.err.println("Sequencer failed: " + e);
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs one command on the engine, leaving the lines it printed, or an error message, in the output buffer.
+     * @param engine the engine to apply the command to
+     * @param engineOutput the buffer the engine prints to
+     * @param line the command line
+     * @return true if the command was applied, false if it was malformed or failed and left the engine unchanged
+     * @throws RuntimeException if the command failed part way, after which the engine's state is unknown
+     */
+    static boolean execute(GatorTicketMaster engine, StringWriter engineOutput, String line) {
+        try {
+            engine.execute(line);
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // A malformed line must not take down the sequencer
+            engineOutput.write("Invalid command: " + line.trim() + System.lineSeparator());
+        } catch (GatorTicketMaster.CommandFailedException e) {
+            // Nor may a command that failed cleanly, such as a waitlist spill that could not be written; its client gets the error
+            System.err.println("Error processing " + line.trim() + ": " + e);
+            engineOutput.write("Error processing " + line.trim() + ": " + e.getMessage() + System.lineSeparator());
+        }
+        return false;
+    }
+
+    /**
+     * Runs one command on the engine and collects the lines it printed, reporting any failure as its output.
+     * A standby applies journaled commands through this method, and the shadow verifier compares engines with it.
+     * @param engine the engine to apply the command to
+     * @param engineOutput the buffer the engine prints to
+     * @param line the command line
+     * @return the output of the command
+     */
+    static String apply(GatorTicketMaster engine, StringWriter engineOutput, String line) {
+        try {
+            execute(engine, engineOutput, line);
+        } catch (RuntimeException e) {
+            System.err.println("Error processing " + line.trim() + ": " + e);
+            engineOutput.write("Error processing " + line.trim() + ": " + e.getMessage() + System.lineSeparator());
+        }
+        return takeOutput(engineOutput);
+    }
+
+    /**
+     * Returns and clears what the engine printed since the last call
+     * @param engineOutput the buffer the engine prints to
+     * @return the output of the last command
+     */
+    static String takeOutput(StringWriter engineOutput) {
+        StringBuffer buffer = engineOutput.getBuffer();
+        String response     = buffer.toString();
+        buffer.setLength(0);
+        return response;
+    }
+
+    /**
+     * Serves one connection. This thread reads and submits commands without waiting for their results,
+     * while a second thread writes the responses back in order, so pipelined commands overlap with execution.
+     * @param socket the client connection
+     */
+    private void handle(Socket socket) {
+        BlockingQueue<Request> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+        connectionThreads.execute(() -> respond(socket, pending));
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Quit ends this connection only; the engine keeps serving the other clients
+                if (line.split("[(),]")[0].trim().equals("Quit")) {
+                    pending.put(new Request(line, "Program Terminated!!" + System.lineSeparator()));
+                    break;
+                }
+
+                Request request = new Request(line);
+                pending.put(request);
+                commands.put(request);
+            }
+        } catch (IOException e) {
+            // The client went away; the writer closes the socket once it drains
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The writer needs the end marker to finish, so wait for room even if this thread was interrupted
+            boolean interrupted = Thread.interrupted();
+            while (true) {
+                try {
+                    pending.put(new Request(null, null));
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes the responses of one connection in the order its commands were received.
+     * The stream is only flushed once no further completed responses are queued, so a pipelined batch goes out in one write.
+     * @param socket the client connection
+     * @param pending the commands of this connection awaiting a response
+     */
+    private void respond(Socket socket, BlockingQueue<Request> pending) {
+        try (Socket client = socket) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
+            while (true) {
+                Request request = pending.take();
+                // The reader has finished and every response has been written
+                if (request.line == null) {
+                    break;
+                }
+
+                writer.write(request.await());
+                writer.write(System.lineSeparator());
+                if (pending.isEmpty()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // The client went away before reading all of its responses
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread.
+     * The factory is looked up reflectively so the server still builds and runs (on pooled platform threads) on JDKs before 21.
+     * @return the executor for connection threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
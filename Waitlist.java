@@ -0,0 +1,68 @@
+// A section's line of users waiting for a seat
+
+/**
+ * The waitlist of one section, served highest effective priority first and, among equals, earliest arrival first,
+ * as WaitlistEntry.compareTo orders entries. GatorTicketMaster keeps it in memory as a SpillingWaitlist, or in
+ * its state file as a MappedWaitlist.
+ */
+public interface Waitlist {
+    /**
+     * Adds a user to the waitlist. The user must not already be waiting.
+     * @param entry the entry of the user
+     * @throws java.io.UncheckedIOException if the entry cannot be stored, in which case the waitlist is unchanged
+     */
+    void insert(GatorTicketMaster.WaitlistEntry entry);
+
+    /**
+     * Removes and returns the user to be served next
+     * @return the entry served next, or null if nobody is waiting
+     */
+    GatorTicketMaster.WaitlistEntry extractMin();
+
+    /**
+     * Removes the user with the given user ID from the waitlist.
+     * @param userID the user ID of the user to remove
+     * @return true if the user was found and removed, otherwise false
+     */
+    boolean remove(int userID);
+
+    /**
+     * Updates the priority of the user with the given user ID, keeping their arrival time and aging offset.
+     * @param userID the user ID of the user to update
+     * @param newPriority the new priority of the user
+     * @return true if the user was found and updated, otherwise false
+     * @throws java.io.UncheckedIOException if the entry cannot be moved, in which case nothing changes
+     */
+    boolean updatePriority(int userID, int newPriority);
+
+    /**
+     * Returns the number of users waiting
+     * @return the size of the waitlist
+     */
+    int size();
+
+    /**
+     * Checks if the waitlist is empty
+     * @return true if no user is waiting, otherwise false
+     */
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of sift steps taken by the waitlist's heap, for diagnostics
+     * @return the number of sift steps so far
+     */
+    long siftSteps();
+
+    /**
+     * Verifies the heap order and the userID index of the waitlist.
+     * @throws IllegalStateException describing the first violation found
+     */
+    void checkInvariants();
+
+    /**
+     * Releases whatever the waitlist holds outside the engine, such as spilled run files.
+     */
+    void close();
+}